@@ -0,0 +1,114 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ *  Per key serial execution (strands) on top of a SimpleThreadPoolExecutor.
+ *
+ *  Tasks with the same key run one at a time, in submission order; tasks with
+ *  different keys run in parallel. Each key has a mailbox that is scheduled on
+ *  the pool only while it has tasks, so no worker ever waits for a key, and the
+ *  mailbox is removed from the map as soon as it becomes empty.
+ ***/
+
+public class KeyedSerialExecutor<K> {
+
+    // tasks run per turn of a mailbox before it goes back to the pool, so that a
+    // busy key does not hold a worker while other keys wait
+    private static final int MAX_TASKS_PER_TURN = 32;
+
+    private final SimpleThreadPoolExecutor pool;
+    private final ConcurrentHashMap<K, Strand> strands = new ConcurrentHashMap<>();
+
+    public KeyedSerialExecutor(SimpleThreadPoolExecutor pool) {
+        this.pool = pool;
+    }
+
+    private class Strand implements Runnable {
+        // IDLE: no turn scheduled; SCHEDULED: a turn is queued or running and looks at
+        // the mailbox again before it leaves; DEAD: left the map, for good
+        static final int IDLE = 0, SCHEDULED = 1, DEAD = 2;
+
+        final K key;
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final AtomicInteger state = new AtomicInteger(IDLE);
+
+        Strand(K key) {
+            this.key = key;
+        }
+
+        // false if the strand died meanwhile and the caller must get a new one
+        boolean tryAdd(Runnable task) {
+            if (state.get() == DEAD)
+                return false;
+            // the task is in the mailbox before we look at the state, so a turn
+            // never has to wait for it to show up
+            tasks.add(task);
+            do {
+                int observed = state.get();
+                if (observed == SCHEDULED)
+                    return true;
+                if (observed == DEAD)   // nobody takes tasks from a dead strand: ours is still there
+                    return !tasks.remove(task);
+                if (state.compareAndSet(IDLE, SCHEDULED)) {
+                    schedule();
+                    return true;
+                }
+            } while (true);
+        }
+
+        private void schedule() {
+            try {
+                pool.executeDetached(this);
+            } catch (RejectedExecutionException ex) {
+                // the pool is shutting down: the tasks of this key are dropped
+                state.set(DEAD);
+                tasks.clear();
+                strands.remove(key, this);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) {
+                    // idle, then look again: a task added before this store is seen
+                    // below, one added after it finds IDLE and schedules the next turn
+                    state.set(IDLE);
+                    if (!tasks.isEmpty() && state.compareAndSet(IDLE, SCHEDULED))
+                        continue;
+                    // still idle: leave the map
+                    if (state.compareAndSet(IDLE, DEAD))
+                        strands.remove(key, this);
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    Thread t = Thread.currentThread();
+                    t.getUncaughtExceptionHandler().uncaughtException(t, ex);
+                }
+            }
+            schedule();
+        }
+    }
+
+    public void execute(K key, Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        do {
+            Strand strand = strands.computeIfAbsent(key, Strand::new);
+            if (strand.tryAdd(task))
+                return;
+            strands.remove(key, strand);    // help the dying strand leave
+        } while (true);
+    }
+
+    // number of keys with queued or running tasks
+    public int activeKeys() {
+        return strands.size();
+    }
+}
@@ -1,8 +1,10 @@
 import java.util.LinkedList;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class MessageQueue<T> {
@@ -18,13 +20,13 @@ public class MessageQueue<T> {
 
             //quando ainda não há requests feitos pelo receiver
             if(requestsQueue.size() == 0){
-                OperationStatus operation = new OperationStatus(false, sentMsg, monitor.newCondition());
+                OperationStatus operation = new OperationStatus(sentMsg);
                 pendingMessages.add(operation);
                 return operation;
             }
             else {
                 //operation = new OperationStatus(true);
-                Request request = requestsQueue.removeLast();
+                Request request = requestsQueue.removeFirst(); // the receiver waiting for longer
                 request.done = true;
                 request.message = sentMsg;
                 request.cond.signal();
@@ -85,8 +87,7 @@ public class MessageQueue<T> {
 
     private T acquireSideEffect() {
         OperationStatus operation = pendingMessages.removeFirst(); //gets the message
-        operation.completed = true; //the message was sent
-        operation.cond.signal();
+        operation.complete(); //the message was sent
         return operation.message;
     }
 
@@ -107,25 +108,44 @@ public class MessageQueue<T> {
 
     //-------------------------------
 
+    // OperationStatus.state is null while the message is pending, a stack of the
+    // threads parked in await, or SENT
+    private static final Object SENT = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MessageQueue.OperationStatus, Object> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(MessageQueue.OperationStatus.class, Object.class, "state");
+
+    private static final class Waiter {
+        volatile Thread thread;     // null once the thread gave up waiting
+        Waiter next;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
     private class OperationStatus implements SendStatus {
 
-        private boolean completed;
+        volatile Object state;      // not private: STATE is created by MessageQueue
         public T message;
-        public Condition cond;
 
-        public OperationStatus(boolean completed , T message, Condition cond){
-            this.completed = completed;
+        public OperationStatus(T message){
             this.message = message;
-            this.cond = cond;
         }
 
         @Override
         public boolean isSent() {
-            monitor.lock();
-            try {
-                return completed;
-            } finally {
-                monitor.unlock();
+            return state == SENT;
+        }
+
+        // one atomic swap; only the threads parked in await are unparked
+        void complete() {
+            Object waiters = STATE.getAndSet(this, SENT);
+            for (Waiter w = waiters instanceof Waiter ? (Waiter) waiters : null; w != null; w = w.next) {
+                Thread thread = w.thread;
+                if (thread != null)
+                    LockSupport.unpark(thread);
             }
         }
 
@@ -133,7 +153,7 @@ public class MessageQueue<T> {
         public boolean tryCancel() {
             monitor.lock();
             try {
-                return !completed && pendingMessages.remove(this);
+                return !isSent() && pendingMessages.remove(this);
             } finally {
                 monitor.unlock();
             }
@@ -141,30 +161,53 @@ public class MessageQueue<T> {
 
         @Override
         public boolean await(int timeout) throws InterruptedException {
+            if (isSent())
+                return true;
+            TimeoutHolder th = new TimeoutHolder(timeout);
+            Waiter node = null;
             try {
-                monitor.lock();
-                TimeoutHolder th = new TimeoutHolder(timeout);
                 do {
-                    try {
-                        if (th.isTimed()) {
-                            if ((timeout = (int)th.value()) <= 0) {
-                                pendingMessages.remove(this);
-                                return false;
-                            }
-                            this.cond.await(timeout, TimeUnit.MILLISECONDS);
+                    Object s = state;
+                    if (s == SENT)
+                        return true;
+                    if (node == null) {
+                        Waiter w = new Waiter(Thread.currentThread());
+                        w.next = (Waiter) s;
+                        if (STATE.compareAndSet(this, s, w))
+                            node = w;
+                        continue;
+                    }
+                    if (th.isTimed()) {
+                        if ((timeout = (int)th.value()) <= 0) {
+                            withdraw();
+                            return isSent();
                         }
-                        this.cond.await();
-                    }catch (InterruptedException ie) {
-                        if (this.completed) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(timeout));
+                    } else
+                        LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        if (isSent()) {
                             Thread.currentThread().interrupt();
+                            return true;
                         }
-                        pendingMessages.remove(this);
-                        throw ie;
+                        withdraw();
+                        throw new InterruptedException();
                     }
-                } while(!this.completed);
-
-                return true;
+                } while (true);
+            } finally {
+                if (node != null) {
+                    node.thread = null;
+                    // unlinked if still on top; otherwise it stays, ignored, until the completion
+                    STATE.compareAndSet(this, node, node.next);
+                }
+            }
+        }
 
+        // a sender that gives up waiting takes its message back
+        private void withdraw() {
+            monitor.lock();
+            try {
+                pendingMessages.remove(this);
             } finally {
                 monitor.unlock();
             }
@@ -0,0 +1,145 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ *  Counters and latency histograms of a SimpleThreadPoolExecutor.
+ *
+ *  Everything is striped (LongAdder), so recording never takes the pool lock
+ *  and does not make the threads that record contend on one cache line.
+ *  Reading is done through snapshot(), which is not atomic across counters.
+ ***/
+
+public class PoolMetrics {
+
+    final LongAdder submitted = new LongAdder();
+    final LongAdder completed = new LongAdder();    // ran without throwing
+    final LongAdder failed = new LongAdder();       // threw; not counted in completed
+    final LongAdder rejected = new LongAdder();
+    final LongAdder timedOut = new LongAdder();
+    final LongAdder shed = new LongAdder();
+    final LongAdder lockWaitNanos = new LongAdder();
+    final LongAdder lockContentions = new LongAdder();
+    final Histogram queuedTime = new Histogram();
+    final Histogram runTime = new Histogram();
+
+    // power of two buckets of nanoseconds: bucket i counts values in [2^(i-1), 2^i)
+    static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        HistogramSnapshot snapshot() {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++)
+                count += counts[i] = buckets[i].sum();
+            return new HistogramSnapshot(counts, count, sum.sum(), max.get());
+        }
+    }
+
+    public static class HistogramSnapshot {
+        private final long[] counts;
+        private final long count, sum, max;
+
+        HistogramSnapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() { return count; }
+
+        public double getMeanMillis() {
+            return count == 0 ? 0 : toMillis(sum) / count;
+        }
+
+        public double getMaxMillis() { return toMillis(max); }
+
+        // upper bound of the bucket that holds the given percentile (0..100)
+        public double getPercentileMillis(double percentile) {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(rank, 1))
+                    return toMillis(Math.min(i == 0 ? 0 : 1L << Math.min(i, 62), max));
+            }
+            return toMillis(max);
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                    count, getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+        }
+    }
+
+    public static class Snapshot {
+        private final long submitted, completed, failed, rejected, timedOut, shed;
+        private final long lockWaitNanos, lockContentions;
+        private final HistogramSnapshot queuedTime, runTime;
+        private final int totalWorkerThreads, idleWorkers, queuedRequests, poolLimit;
+
+        Snapshot(PoolMetrics m, int totalWorkerThreads, int idleWorkers, int queuedRequests, int poolLimit) {
+            submitted = m.submitted.sum();
+            completed = m.completed.sum();
+            failed = m.failed.sum();
+            rejected = m.rejected.sum();
+            timedOut = m.timedOut.sum();
+            shed = m.shed.sum();
+            lockWaitNanos = m.lockWaitNanos.sum();
+            lockContentions = m.lockContentions.sum();
+            queuedTime = m.queuedTime.snapshot();
+            runTime = m.runTime.snapshot();
+            this.totalWorkerThreads = totalWorkerThreads;
+            this.idleWorkers = idleWorkers;
+            this.queuedRequests = queuedRequests;
+            this.poolLimit = poolLimit;
+        }
+
+        public long getSubmitted() { return submitted; }
+        public long getCompleted() { return completed; }
+        public long getFailed() { return failed; }
+        public long getRejected() { return rejected; }
+        public long getTimedOut() { return timedOut; }
+        public long getShed() { return shed; }
+        public long getLockWaitNanos() { return lockWaitNanos; }
+        public long getLockContentions() { return lockContentions; }
+        public HistogramSnapshot getQueuedTime() { return queuedTime; }
+        public HistogramSnapshot getRunTime() { return runTime; }
+        public int getTotalWorkerThreads() { return totalWorkerThreads; }
+        public int getIdleWorkers() { return idleWorkers; }
+        public int getQueuedRequests() { return queuedRequests; }
+        public int getPoolLimit() { return poolLimit; }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted + " completed=" + completed + " failed=" + failed
+                    + " rejected=" + rejected + " timedOut=" + timedOut + " shed=" + shed
+                    + " workers=" + totalWorkerThreads + " idle=" + idleWorkers
+                    + " queued=" + queuedRequests + " limit=" + poolLimit
+                    + " lockWait=" + lockWaitNanos + "ns/" + lockContentions
+                    + "\n  queuedTime " + queuedTime + "\n  runTime " + runTime;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ *  Fork/join task for SimpleThreadPoolExecutor.
+ *
+ *  compute() may fork() subtasks and join() them. A worker that joins a
+ *  subtask nobody started yet runs it itself; otherwise it helps the pool,
+ *  running queued tasks until the subtask completes. Workers therefore never
+ *  park while there is work, and a recursive job does not deadlock when all
+ *  the workers of the pool are joining.
+ ***/
+
+public abstract class PoolTask<T> implements Runnable {
+
+    private static final int NEW = 0, RUNNING = 1, DONE = 2;
+
+    // while there is nothing to help with, a joining worker checks for new work
+    // at this rate; threads outside the pool just wait
+    private static final long HELP_RETRY_MILLIS = 1;
+
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    private T result;
+    private Throwable failure;
+    private volatile boolean waiters;
+
+    protected abstract T compute();
+
+    // queues this task in the pool of the current worker
+    public final PoolTask<T> fork() {
+        SimpleThreadPoolExecutor pool = SimpleThreadPoolExecutor.currentPool();
+        if (pool == null)
+            throw new IllegalStateException("fork outside of a pool worker");
+        pool.fork(this);
+        return this;
+    }
+
+    // runs the task in the current thread, unless it was already started
+    public final T invoke() {
+        run();
+        return join();
+    }
+
+    public static void invokeAll(PoolTask<?> first, PoolTask<?> second) {
+        second.fork();
+        first.invoke();
+        second.join();
+    }
+
+    // whoever takes the task from a queue runs it unless a joiner already did
+    @Override
+    public final void run() {
+        if (!state.compareAndSet(NEW, RUNNING))
+            return;
+        try {
+            result = compute();
+        } catch (Throwable ex) {
+            failure = ex;
+        }
+        state.set(DONE);
+        if (waiters) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    public final boolean isDone() {
+        return state.get() == DONE;
+    }
+
+    public final T join() {
+        if (state.get() != DONE) {
+            SimpleThreadPoolExecutor pool = SimpleThreadPoolExecutor.currentPool();
+            if (pool != null)
+                run();  // still queued: it runs here, its queue entry becomes a no-op
+            boolean interrupted = false;
+            while (state.get() != DONE) {
+                if (pool != null && pool.helpOnce())
+                    continue;
+                interrupted |= !awaitDone(pool != null ? HELP_RETRY_MILLIS : 0);
+            }
+            // join is not interruptible, as in ForkJoinTask: the interrupt is kept for the caller
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+        if (failure != null)
+            throw new RuntimeException(failure);
+        return result;
+    }
+
+    // false if the wait was interrupted
+    private synchronized boolean awaitDone(long millis) {
+        waiters = true;
+        if (state.get() != DONE) {
+            try {
+                wait(millis);
+            } catch (InterruptedException ie) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
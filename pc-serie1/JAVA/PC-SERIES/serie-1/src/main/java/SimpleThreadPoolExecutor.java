@@ -1,83 +1,753 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 public class SimpleThreadPoolExecutor {
 
+    // SHARED_QUEUE: every execute/getWork goes through the monitor and pendingRequests
+    // WORK_STEALING: each worker owns a deque and idle workers steal from the others;
+    //                execute returns once the command is queued, without waiting for a worker
+    // VIRTUAL_THREADS: as SHARED_QUEUE, but workers are virtual threads, so maxPoolSize
+    //                  is a limit on concurrently running tasks rather than on OS threads.
+    //                  It is the permit limit: a running task holds its worker as it would
+    //                  hold a permit, so a separate Semaphore would count the same thing
+    public enum Mode { SHARED_QUEUE, WORK_STEALING, VIRTUAL_THREADS }
+
+    // what execute does when all the workers are busy and pendingRequests is full. With
+    // queueCapacity 0 commands only go straight to idle workers: BLOCK waits for one to
+    // go idle, and DISCARD_OLDEST, with nothing queued to discard, rejects as REJECT does
+    public enum Saturation { BLOCK, CALLER_RUNS, DISCARD_OLDEST, REJECT, HANDLER }
+
+    public interface RejectionHandler {
+        // called outside the lock; the returned value is the result of execute
+        boolean rejected(Runnable command, SimpleThreadPoolExecutor executor) throws InterruptedException;
+    }
+
+    // lanes of the default pools: execute(command, timeout) uses NORMAL_PRIORITY
+    public static final int HIGH_PRIORITY = 0, NORMAL_PRIORITY = 1, LOW_PRIORITY = 2;
+    private static final int[] DEFAULT_LANE_WEIGHTS = { 8, 4, 1 };
+
     private final Lock monitor = new ReentrantLock();
 
+    private final Mode mode;
     private int maxPoolSize;
     private int keepAliveTime;
-    public int totalWorkerThreads;
+    public volatile int totalWorkerThreads;
+
+    // workers up to corePoolSize do not expire; poolLimit bounds the number of workers
+    // and stays at maxPoolSize unless the adaptive controller moves it within [core, max]
+    private volatile int corePoolSize;
+    private volatile int poolLimit;
+    private Thread controller;
+
+    private final PoolMetrics metrics = new PoolMetrics();
+
+    // sampled by the adaptive controller
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final LongAdder dequeuedRequests = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
 
-    private boolean toShutdown, doneshutdown;
+    private volatile boolean toShutdown;
+    private boolean doneshutdown;
     private Condition shutdownCondition;
 
-    public LinkedList<Request> pendingRequests = new LinkedList<>();
-    public LinkedList<WorkerThread> availableThreads = new LinkedList<>();
+    private final int queueCapacity;
+    private final Saturation saturation;
+    private final RejectionHandler rejectionHandler;
+    private final Condition notFull = monitor.newCondition();
+    // BLOCK submitters waiting on notFull, written under the monitor; with queueCapacity 0
+    // nothing is ever dequeued, so a worker that goes idle is what signals them
+    private volatile int blockedSubmitters;
+
+    // called, by the worker that sheds it, with the command of a request whose deadline passed
+    private volatile Consumer<Runnable> expiryHandler;
+
+    public RequestLanes<Request> pendingRequests;
+    public IdleWorkerStack availableThreads = new IdleWorkerStack();
+
+    // pendingRequests.size(), written under the monitor and read without it
+    private volatile int queuedRequests;
+
+    // work stealing state: one deque per worker slot, so that the work queued on
+    // a slot survives the worker that owned it (keep alive expiration)
+    private AtomicReferenceArray<Worker> workers;
+    private ConcurrentLinkedDeque<StealableRequest>[] deques;
+    private final AtomicInteger nextDeque = new AtomicInteger();
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    // the idle workers, most recently idle first; a worker is in it while its idle flag is set
+    private final ConcurrentLinkedDeque<Worker> idleStack = new ConcurrentLinkedDeque<>();
+
+    private static final ThreadLocal<Worker> currentWorker = new ThreadLocal<>();
+
+    // delayed and periodic tasks, created by the first schedule call
+    private static final int TIMER_TICK_MILLIS = 10, TIMER_WHEEL_SIZE = 512;
+    private volatile TimerWheel timerWheel;
 
     public SimpleThreadPoolExecutor(int maxPoolSize, int keepAliveTime) {
+        this(maxPoolSize, keepAliveTime, Mode.SHARED_QUEUE);
+    }
+
+    public SimpleThreadPoolExecutor(int maxPoolSize, int keepAliveTime, Mode mode) {
+        this(maxPoolSize, keepAliveTime, mode, Integer.MAX_VALUE, Saturation.BLOCK, null, DEFAULT_LANE_WEIGHTS);
+    }
+
+    // one lane per weight, lane 0 being the highest priority (see RequestLanes)
+    public SimpleThreadPoolExecutor(int maxPoolSize, int keepAliveTime, int[] laneWeights) {
+        this(maxPoolSize, keepAliveTime, Mode.SHARED_QUEUE, Integer.MAX_VALUE, Saturation.BLOCK, null, laneWeights);
+    }
+
+    public SimpleThreadPoolExecutor(int maxPoolSize, int keepAliveTime, int queueCapacity, Saturation saturation) {
+        this(maxPoolSize, keepAliveTime, Mode.SHARED_QUEUE, queueCapacity, saturation, null, DEFAULT_LANE_WEIGHTS);
+        if (saturation == Saturation.HANDLER)
+            throw new IllegalArgumentException("HANDLER saturation requires a RejectionHandler");
+    }
+
+    public SimpleThreadPoolExecutor(int maxPoolSize, int keepAliveTime, int queueCapacity, RejectionHandler handler) {
+        this(maxPoolSize, keepAliveTime, Mode.SHARED_QUEUE, queueCapacity, Saturation.HANDLER, handler, DEFAULT_LANE_WEIGHTS);
+        if (handler == null)
+            throw new NullPointerException();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private SimpleThreadPoolExecutor(int maxPoolSize, int keepAliveTime, Mode mode,
+                                     int queueCapacity, Saturation saturation, RejectionHandler handler,
+                                     int[] laneWeights) {
+        if (queueCapacity < 0)
+            throw new IllegalArgumentException("queueCapacity");
+        this.pendingRequests = new RequestLanes<>(laneWeights);
         this.maxPoolSize = maxPoolSize;
+        this.poolLimit = maxPoolSize;
         this.keepAliveTime = keepAliveTime;
+        this.mode = mode;
+        this.queueCapacity = queueCapacity;
+        this.saturation = saturation;
+        this.rejectionHandler = handler;
         shutdownCondition = monitor.newCondition();
+        if (mode == Mode.WORK_STEALING) {
+            workers = new AtomicReferenceArray<>(maxPoolSize);
+            deques = new ConcurrentLinkedDeque[maxPoolSize];
+            for (int i = 0; i < maxPoolSize; i++)
+                deques[i] = new ConcurrentLinkedDeque<>();
+        }
     }
 
     public boolean execute(Runnable command, int timeout) throws InterruptedException{
+        return execute(command, NORMAL_PRIORITY, timeout);
+    }
 
-        monitor.lock();
-        try {
+    // priority is the lane of the request while it waits in pendingRequests; the
+    // work stealing deques have no lanes, so there it is ignored
+    public boolean execute(Runnable command, int priority, int timeout) throws InterruptedException{
+        return execute(command, priority, timeout, null);
+    }
 
+    // deadline is the instant after which the command is no longer worth running: a
+    // worker that takes the request later sheds it instead (see setExpiryHandler) and
+    // the submitter, if still waiting, gets false. null means no deadline
+    public boolean execute(Runnable command, int priority, int timeout, TimeoutHolder deadline)
+            throws InterruptedException{
+
+        if (priority < 0 || priority >= pendingRequests.lanes())
+            throw new IllegalArgumentException("priority");
+        metrics.submitted.increment();
+        if (expired(deadline)) {
+            metrics.shed.increment();
+            return false;
+        }
+        if (mode == Mode.WORK_STEALING)
+            return stealableExecute(command, deadline);
+
+        if(toShutdown)
+            throw new RejectedExecutionException();
+
+        // fast path: hand the command to an idle worker without taking the lock
+        if(queuedRequests == 0 && availableThreads.handOff(command))
+            return true;
+
+        Boolean accepted = lockedExecute(command, priority, timeout, deadline);
+        return accepted != null ? accepted : onSaturation(command);
+    }
+
+    //--------------------------------------------
+    // load shedding
+
+    public void setExpiryHandler(Consumer<Runnable> handler) {
+        expiryHandler = handler;
+    }
+
+    public long getShedCount() {
+        return metrics.shed.sum();
+    }
+
+    private static boolean expired(TimeoutHolder deadline) {
+        return deadline != null && deadline.isTimed() && deadline.value() <= 0;
+    }
+
+    // what the worker runs instead of an expired command, null if there is no handler
+    private Runnable expiryCall(Runnable command) {
+        Consumer<Runnable> handler = expiryHandler;
+        return handler == null ? null : () -> handler.accept(command);
+    }
+
+    //--------------------------------------------
+    // batch submission: the whole batch goes through one acquisition of the monitor,
+    // wakes at most one idle worker per task and reserves the missing workers in one pass
+
+    // result[i] tells if the i-th task was accepted within timeout, as execute would
+    public boolean[] executeAll(Collection<? extends Runnable> commands, int timeout) throws InterruptedException {
+        return executeAll(commands, NORMAL_PRIORITY, timeout);
+    }
+
+    public boolean[] executeAll(Collection<? extends Runnable> commands, int priority, int timeout)
+            throws InterruptedException {
+        if (priority < 0 || priority >= pendingRequests.lanes())
+            throw new IllegalArgumentException("priority");
+        Runnable[] batch = commands.toArray(new Runnable[0]);
+        metrics.submitted.add(batch.length);
+        if (mode == Mode.WORK_STEALING)
+            return stealableExecuteAll(batch);
+        if(toShutdown)
+            throw new RejectedExecutionException();
+
+        boolean[] accepted = new boolean[batch.length];
+        List<Integer> saturated = new ArrayList<>();
+        lockedExecuteAll(batch, priority, new TimeoutHolder(timeout), accepted, saturated);
+        for (int i : saturated)
+            accepted[i] = onBatchSaturation(batch[i]);
+        return accepted;
+    }
+
+    // first critical section enqueues the batch, the new workers are started outside
+    // the lock and the second one waits for the queued requests to be taken
+    private void lockedExecuteAll(Runnable[] batch, int priority, TimeoutHolder th,
+                                  boolean[] accepted, List<Integer> saturated) throws InterruptedException {
+        List<Worker> started = new ArrayList<>();
+        Request[] queued = new Request[batch.length];
+        boolean waitQueued = false;
+        lockMonitor();
+        try {
             if(toShutdown)
                 throw new RejectedExecutionException();
+            unlockedEnqueueAll(batch, priority, th, accepted, saturated, queued, started);
+            for (Request request : queued)
+                waitQueued |= request != null && !request.done;
+        } catch (InterruptedException ie) {
+            withdrawAll(queued);
+            throw ie;
+        } finally {
+            monitor.unlock();
+            for (Worker w : started)
+                w.thread.start();
+        }
+        if (!waitQueued)
+            return;
 
-            if(pendingRequests.size() == 0 && availableThreads.size() > 0){
-                WorkerThread thread = availableThreads.getFirst();
-                availableThreads.remove(thread);
-                thread.cmd = command;
-                thread.condition.signal();
-                return true;
+        lockMonitor();
+        try {
+            // as in execute, wait until each queued request is taken by a worker
+            for (int i = 0; i < queued.length; i++) {
+                if (queued[i] != null)
+                    accepted[i] = awaitTaken(queued[i], th);
             }
+        } catch (InterruptedException ie) {
+            withdrawAll(queued);
+            throw ie;
+        } finally {
+            monitor.unlock();
+        }
+    }
 
-            if(totalWorkerThreads < maxPoolSize) {
-                WorkerThread newThread = new WorkerThread(command);
-                ++totalWorkerThreads;
-                newThread.start();
-                return true;
+    // an interrupted batch is withdrawn; tasks already handed to a worker still run
+    private void withdrawAll(Request[] queued) {
+        for (Request request : queued) {
+            if (request != null && !request.done && !request.discarded && pendingRequests.remove(request))
+                requestDequeued();
+        }
+    }
+
+    private void unlockedEnqueueAll(Runnable[] batch, int priority, TimeoutHolder th, boolean[] accepted,
+                                    List<Integer> saturated, Request[] queued, List<Worker> started)
+            throws InterruptedException {
+        int i = 0;
+        while (i < batch.length) {
+            Runnable command = batch[i];
+            Worker w;
+            // idle workers go to the requests queued before ours, then to ours
+            if (pendingRequests.size() > 0)
+                unlockedDispatchToIdle();
+            if (pendingRequests.size() == 0 && availableThreads.handOff(command)) {
+                accepted[i++] = true;
+            } else if ((w = unlockedNewWorker(command)) != null) {
+                started.add(w);
+                accepted[i++] = true;
+            } else if (pendingRequests.size() < queueCapacity) {
+                pendingRequests.add(priority, queued[i++] = new Request(command));
+            } else if (saturation == Saturation.DISCARD_OLDEST && pendingRequests.size() > 0) {
+                Request oldest = pendingRequests.removeOldestOfLowest();
+                oldest.discarded = true;
+                oldest.condition.signal();
+                metrics.rejected.increment();
+                pendingRequests.add(priority, queued[i++] = new Request(command));
+            } else if (saturation != Saturation.BLOCK) {
+                saturated.add(i++);
+            } else {
+                // the workers only take requests once they see them, and run
+                queuedRequests = pendingRequests.size();
+                for (Worker s : started)
+                    s.thread.start();
+                started.clear();
+                blockedSubmitters++;
+                try {
+                    // as in lockedExecute: a worker that goes idle after this look signals us
+                    if (queueCapacity == 0 && availableThreads.handOff(command)) {
+                        accepted[i++] = true;
+                        continue;
+                    }
+                    if (!awaitNotFull(th))
+                        break;
+                } finally {
+                    blockedSubmitters--;
+                }
+                if(toShutdown)
+                    break;
             }
+        }
+        for (; i < batch.length; i++) {   // timed out (or shut down) waiting for room
+            metrics.rejected.increment();
+            accepted[i] = false;
+        }
+        queuedRequests = pendingRequests.size();
+        unlockedDispatchToIdle();
+    }
 
-            Request request = new Request(command);
-            pendingRequests.addLast(request);  // enqueue "request" at the end of the request queue
+    // waits, with the monitor held, until a worker takes the request or timeout expires;
+    // a request that was not taken is withdrawn from pendingRequests
+    private boolean awaitTaken(Request request, TimeoutHolder th) throws InterruptedException {
+        while (!request.done && !request.discarded) {
+            try {
+                if (th.isTimed()) {
+                    long millisTimeout = th.value();
+                    if (millisTimeout <= 0) {
+                        pendingRequests.remove(request);
+                        requestDequeued();
+                        metrics.timedOut.increment();
+                        return false;
+                    }
+                    request.condition.await(millisTimeout, TimeUnit.MILLISECONDS);
+                } else
+                    request.condition.await();
+            } catch (InterruptedException ie) {
+                if (request.done) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                if (!request.discarded) {
+                    pendingRequests.remove(request);
+                    requestDequeued();
+                }
+                throw ie;
+            }
+        }
+        return request.done;
+    }
+
+    // like onSaturation, but a rejection is reported in the result instead of thrown
+    private boolean onBatchSaturation(Runnable command) throws InterruptedException {
+        if (saturation == Saturation.REJECT || saturation == Saturation.DISCARD_OLDEST) {
+            metrics.rejected.increment();
+            return false;
+        }
+        return onSaturation(command);
+    }
+
+    public long getRejectedCount() {
+        return metrics.rejected.sum();
+    }
+
+    //--------------------------------------------
+    // metrics
+
+    public PoolMetrics.Snapshot metrics() {
+        return new PoolMetrics.Snapshot(metrics, totalWorkerThreads, idleWorkerCount(), queuedRequestCount(), poolLimit);
+    }
+
+    private int idleWorkerCount() {
+        return mode == Mode.WORK_STEALING ? idleWorkers.get() : availableThreads.size();
+    }
+
+    private int queuedRequestCount() {
+        if (mode != Mode.WORK_STEALING)
+            return queuedRequests;
+        int queued = 0;
+        for (ConcurrentLinkedDeque<StealableRequest> deque : deques)
+            queued += deque.size();
+        return queued;
+    }
+
+    // registers the pool in the platform MBean server as SimpleThreadPoolExecutor:name=<name>
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("SimpleThreadPoolExecutor", "name", name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBeanAdapter(), objectName);
+        return objectName;
+    }
+
+    private class MXBeanAdapter implements SimpleThreadPoolExecutorMXBean {
+        public int getMaxPoolSize() { return maxPoolSize; }
+        public int getCorePoolSize() { return corePoolSize; }
+        public int getPoolLimit() { return poolLimit; }
+        public int getKeepAliveTime() { return keepAliveTime; }
+
+        public int getTotalWorkerThreads() { return totalWorkerThreads; }
+        public int getIdleWorkers() { return idleWorkerCount(); }
+        public int getQueuedRequests() { return queuedRequestCount(); }
+
+        public long getTasksSubmitted() { return metrics.submitted.sum(); }
+        public long getTasksCompleted() { return metrics.completed.sum(); }
+        public long getTasksFailed() { return metrics.failed.sum(); }
+        public long getTasksRejected() { return metrics.rejected.sum(); }
+        public long getTasksTimedOut() { return metrics.timedOut.sum(); }
+        public long getTasksShed() { return metrics.shed.sum(); }
+
+        public double getQueuedTimeMeanMillis() { return metrics.queuedTime.snapshot().getMeanMillis(); }
+        public double getQueuedTimeP99Millis() { return metrics.queuedTime.snapshot().getPercentileMillis(99); }
+        public double getRunTimeMeanMillis() { return metrics.runTime.snapshot().getMeanMillis(); }
+        public double getRunTimeP99Millis() { return metrics.runTime.snapshot().getPercentileMillis(99); }
+
+        public long getLockWaitNanos() { return metrics.lockWaitNanos.sum(); }
+        public long getLockContentions() { return metrics.lockContentions.sum(); }
+    }
+
+    //--------------------------------------------
+    // result bearing tasks: the worker completes the future itself, so there is no
+    // lock or condition between the task and whoever waits for its result
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) throws InterruptedException {
+        return submit(task, -1);
+    }
+
+    // if the task is not accepted within timeout, the future fails with RejectedExecutionException
+    public <T> CompletableFuture<T> submit(Callable<T> task, int timeout) throws InterruptedException {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!execute(completing(task, future), timeout))
+            future.completeExceptionally(new RejectedExecutionException("not accepted within timeout"));
+        return future;
+    }
+
+    private static <T> Runnable completing(Callable<T> task, CompletableFuture<T> future) {
+        return () -> {
+            if (future.isDone()) // cancelled while queued
+                return;
+            try {
+                future.complete(task.call());
+            } catch (Throwable ex) {
+                future.completeExceptionally(ex);
+            }
+        };
+    }
+
+    // runs every task and waits for all of them; the ones still running when the
+    // timeout expires are cancelled
+    public <T> List<CompletableFuture<T>> invokeAll(Collection<? extends Callable<T>> tasks, int timeout)
+            throws InterruptedException {
+        TimeoutHolder th = new TimeoutHolder(timeout);
+        List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks)
+                futures.add(submit(task, remaining(th)));
+            for (CompletableFuture<T> future : futures) {
+                try {
+                    if (th.isTimed())
+                        future.get(th.value(), TimeUnit.MILLISECONDS);
+                    else
+                        future.get();
+                } catch (ExecutionException ignored) {
+                    // the failure stays in the future, keep waiting for the others
+                } catch (TimeoutException te) {
+                    cancelAll(futures);
+                    break;
+                }
+            }
+        } catch (InterruptedException ie) {
+            cancelAll(futures);
+            throw ie;
+        }
+        return futures;
+    }
+
+    // returns the result of the first task that completes normally and cancels the others
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, int timeout)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (tasks.isEmpty())
+            throw new IllegalArgumentException("no tasks");
+        TimeoutHolder th = new TimeoutHolder(timeout);
+        CompletableFuture<T> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger(tasks.size());
+        List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                if (first.isDone())
+                    break;
+                CompletableFuture<T> future = submit(task, remaining(th));
+                futures.add(future);
+                future.whenComplete((result, ex) -> {
+                    if (ex == null)
+                        first.complete(result);
+                    else if (failures.decrementAndGet() == 0)
+                        first.completeExceptionally(ex);
+                });
+            }
+            if (th.isTimed())
+                return first.get(th.value(), TimeUnit.MILLISECONDS);
+            return first.get();
+        } finally {
+            cancelAll(futures);
+        }
+    }
+
+    private static <T> void cancelAll(List<CompletableFuture<T>> futures) {
+        for (CompletableFuture<T> future : futures)
+            future.cancel(false);
+    }
+
+    private static int remaining(TimeoutHolder th) {
+        return th.isTimed() ? (int) th.value() : -1;
+    }
+
+    //--------------------------------------------
+    // delayed and periodic tasks: they wait in the timer wheel, not in a worker,
+    // and only go through the handoff path when they are due
+
+    public TimerWheel.Timeout schedule(Runnable command, int delay) {
+        return timerWheel().schedule(command, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public TimerWheel.Timeout scheduleAtFixedRate(Runnable command, int initialDelay, int period) {
+        return timerWheel().scheduleAtFixedRate(command, initialDelay, period, TimeUnit.MILLISECONDS);
+    }
+
+    private TimerWheel timerWheel() {
+        TimerWheel wheel = timerWheel;
+        if (wheel != null)
+            return wheel;
+        lockMonitor();
+        try {
+            if(toShutdown)
+                throw new RejectedExecutionException();
+            if (timerWheel == null)
+                timerWheel = new TimerWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, this::executeDetached);
+            return timerWheel;
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    // like execute, but the caller does not wait for a worker to take the command:
+    // used by the timer wheel ticker and by the strands, which must never block
+    void executeDetached(Runnable command) {
+        metrics.submitted.increment();
+        if(toShutdown)
+            throw new RejectedExecutionException();
+
+        if (mode == Mode.WORK_STEALING) {
+            stealableExecute(command, null);
+            return;
+        }
+
+        if(queuedRequests == 0 && availableThreads.handOff(command))
+            return;
+
+        Worker newWorker = null;
+        lockMonitor();
+        try {
+            if(toShutdown)
+                throw new RejectedExecutionException();
+
+            if(pendingRequests.size() == 0 && availableThreads.handOff(command))
+                return;
+
+            if((newWorker = unlockedNewWorker(command)) != null)
+                return;
+
+            // a due timer is queued even beyond queueCapacity: it already waited its delay
+            pendingRequests.add(NORMAL_PRIORITY, new Request(command));
+            queuedRequests = pendingRequests.size();
+            unlockedDispatchToIdle();
+        } finally {
+            monitor.unlock();
+            if (newWorker != null)
+                newWorker.thread.start();
+        }
+    }
+
+    // returns null when the queue is full and the saturation policy must run outside the lock
+    private Boolean lockedExecute(Runnable command, int priority, int timeout, TimeoutHolder deadline)
+            throws InterruptedException {
+        Worker newWorker = null;
+        lockMonitor();
+        try {
             TimeoutHolder th = new TimeoutHolder(timeout);
             do {
+                if(toShutdown)
+                    throw new RejectedExecutionException();
+
+                if(pendingRequests.size() == 0 && availableThreads.handOff(command))
+                    return true;
+
+                if((newWorker = unlockedNewWorker(command)) != null)
+                    return true;
+
+                if (pendingRequests.size() < queueCapacity)
+                    break;
+
+                if (saturation == Saturation.DISCARD_OLDEST && pendingRequests.size() > 0) {
+                    Request oldest = pendingRequests.removeOldestOfLowest();
+                    requestDequeued();
+                    oldest.discarded = true;
+                    oldest.condition.signal();
+                    metrics.rejected.increment();
+                    break;
+                }
+                if (saturation != Saturation.BLOCK)
+                    return null;
+
+                blockedSubmitters++;
                 try {
-                    if (th.isTimed()) {
-                        if ((timeout = (int)th.value()) <= 0) {
-                            pendingRequests.remove(request);
-                            return false;
-                        }
-                        request.condition.await(timeout, TimeUnit.MILLISECONDS);
-                    } else
-                        request.condition.await();
-                } catch (InterruptedException ie) {
-                    if (request.done) {
-                        Thread.currentThread().interrupt();
-                        break;
+                    // a worker that goes idle after this look sees us in blockedSubmitters
+                    if (queueCapacity == 0 && availableThreads.handOff(command))
+                        return true;
+                    if (!awaitNotFull(th)) {
+                        metrics.rejected.increment();
+                        return false;
                     }
-                    throw ie;
+                } finally {
+                    blockedSubmitters--;
                 }
-            } while (!request.done);
+            } while (true);
+
+            Request request = new Request(command);
+            request.deadline = deadline;
+            pendingRequests.add(priority, request);  // enqueue "request" at the end of its lane
+            queuedRequests = pendingRequests.size();
+            // a worker may have published itself idle without seeing the request
+            unlockedDispatchToIdle();
+            return awaitTaken(request, th);
+        } finally {
+            monitor.unlock();
+            // the thread start latency is paid outside the lock
+            if (newWorker != null)
+                newWorker.thread.start();
+        }
+    }
+
+    // reserves a worker if the pool is below its limit; the caller starts the thread
+    // after releasing the monitor
+    private Worker unlockedNewWorker(Runnable command) {
+        if (totalWorkerThreads >= poolLimit)
+            return null;
+        Worker newWorker = new Worker(command);
+        if (mode == Mode.WORK_STEALING) {
+            int slot = 0;
+            while (workers.get(slot) != null) slot++;   // there is one, since total < poolLimit <= maxPoolSize
+            newWorker.slot = slot;
+            workers.set(slot, newWorker);
+        }
+        ++totalWorkerThreads;
+        return newWorker;
+    }
+
+    private void recordQueueWait(long enqueuedAt) {
+        long waited = System.nanoTime() - enqueuedAt;
+        queueWaitNanos.add(waited);
+        dequeuedRequests.increment();
+        metrics.queuedTime.record(waited);
+    }
+
+    // the time spent waiting for the monitor is measured only when it is contended
+    private void lockMonitor() {
+        if (monitor.tryLock())
+            return;
+        long start = System.nanoTime();
+        monitor.lock();
+        metrics.lockWaitNanos.add(System.nanoTime() - start);
+        metrics.lockContentions.increment();
+    }
 
+    // BLOCK saturation: waits, with the monitor held, for room in pendingRequests
+    private boolean awaitNotFull(TimeoutHolder th) throws InterruptedException {
+        try {
+            if (th.isTimed()) {
+                long millisTimeout = th.value();
+                if (millisTimeout <= 0)
+                    return false;
+                notFull.await(millisTimeout, TimeUnit.MILLISECONDS);
+            } else
+                notFull.await();
             return true;
+        } catch (InterruptedException ie) {
+            // do not swallow a signal meant for another blocked submitter
+            if (pendingRequests.size() < queueCapacity)
+                notFull.signal();
+            throw ie;
+        }
+    }
+
+    private boolean onSaturation(Runnable command) throws InterruptedException {
+        metrics.rejected.increment();
+        switch (saturation) {
+            case CALLER_RUNS:
+                command.run();
+                return true;
+            case HANDLER:
+                return rejectionHandler.rejected(command, this);
+            default:
+                throw new RejectedExecutionException();
+        }
+    }
+
+    // a worker went idle while submitters were blocked on a queue without room
+    private void signalNotFull() {
+        lockMonitor();
+        try {
+            notFull.signal();
         } finally {
             monitor.unlock();
         }
     }
 
+    // called under the monitor whenever a request leaves pendingRequests
+    private void requestDequeued() {
+        queuedRequests = pendingRequests.size();
+        if (queueCapacity != Integer.MAX_VALUE)
+            notFull.signal();
+    }
+
     public void shutDown(){
-        monitor.lock();
+        lockMonitor();
         try {
             unlockedShutDown();
         } finally {
@@ -87,13 +757,177 @@ public class SimpleThreadPoolExecutor {
 
     private void unlockedShutDown(){
         toShutdown = true;
-        for (WorkerThread w : availableThreads) {
-            w.condition.signalAll();
+        if (totalWorkerThreads == 0)
+            doneshutdown = true;
+        notFull.signalAll();
+        if (timerWheel != null)
+            timerWheel.stop();
+        if (controller != null)
+            LockSupport.unpark(controller);
+        wakeIdleWorkers();
+    }
+
+    private void wakeIdleWorkers() {
+        availableThreads.wakeAll();
+        if (mode == Mode.WORK_STEALING) {
+            for (int i = 0; i < workers.length(); i++) {
+                Worker w = workers.get(i);
+                if (w != null) LockSupport.unpark(w.thread);
+            }
+        }
+    }
+
+    //--------------------------------------------
+    // pool sizing
+
+    public void setCorePoolSize(int corePoolSize) {
+        if (corePoolSize < 0 || corePoolSize > maxPoolSize)
+            throw new IllegalArgumentException("corePoolSize");
+        lockMonitor();
+        try {
+            this.corePoolSize = corePoolSize;
+            if (poolLimit < corePoolSize)
+                poolLimit = corePoolSize;
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    // starts the missing core workers now, so the first requests do not pay for it
+    public int prestartCoreThreads() {
+        List<Worker> started = new ArrayList<>();
+        lockMonitor();
+        try {
+            if(toShutdown)
+                throw new RejectedExecutionException();
+            Worker w;
+            while (totalWorkerThreads < corePoolSize && (w = unlockedNewWorker(null)) != null)
+                started.add(w);
+        } finally {
+            monitor.unlock();
+        }
+        for (Worker w : started)
+            w.thread.start();
+        return started.size();
+    }
+
+    public int getPoolLimit() {
+        return poolLimit;
+    }
+
+    // every periodMillis, moves poolLimit within [core, max] from the measured queue wait
+    // and worker utilization
+    public void startAdaptiveSizing(int periodMillis, int targetQueueWaitMillis) {
+        if (periodMillis <= 0 || targetQueueWaitMillis < 0)
+            throw new IllegalArgumentException();
+        lockMonitor();
+        try {
+            if(toShutdown)
+                throw new RejectedExecutionException();
+            if (controller != null)
+                throw new IllegalStateException("adaptive sizing already started");
+            poolLimit = Math.min(maxPoolSize, Math.max(Math.max(corePoolSize, 1), totalWorkerThreads));
+            controller = new Thread(new PoolController(periodMillis, targetQueueWaitMillis), "pool-controller");
+            controller.setDaemon(true);
+            controller.start();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    // grows the pool while requests wait longer than the target and there is CPU to spare
+    // (the busy workers are blocked, not computing); shrinks it while workers are mostly idle
+    private class PoolController implements Runnable {
+        private static final double CPU_CEILING = 0.9, LOW_UTILIZATION = 0.3;
+
+        private final long periodNanos, targetWaitNanos;
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private long lastSample, lastWait, lastDequeued, lastBusy;
+
+        PoolController(int periodMillis, int targetQueueWaitMillis) {
+            periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+            targetWaitNanos = TimeUnit.MILLISECONDS.toNanos(targetQueueWaitMillis);
+        }
+
+        @Override
+        public void run() {
+            lastSample = System.nanoTime();
+            while (!toShutdown) {
+                LockSupport.parkNanos(this, periodNanos);
+                if (!toShutdown)
+                    sample();
+            }
+        }
+
+        private void sample() {
+            long now = System.nanoTime();
+            long wait = queueWaitNanos.sum(), dequeued = dequeuedRequests.sum(), busy = busyNanos.sum();
+            long elapsed = now - lastSample, dWait = wait - lastWait;
+            long dDequeued = dequeued - lastDequeued, dBusy = busy - lastBusy;
+            lastSample = now; lastWait = wait; lastDequeued = dequeued; lastBusy = busy;
+
+            int backlog = backlog();
+            // requests queued and none taken during the period waited at least the whole period
+            long avgWait = dDequeued > 0 ? dWait / dDequeued : (backlog > 0 ? elapsed : 0);
+            double utilization = (double) dBusy / ((double) elapsed * Math.max(totalWorkerThreads, 1));
+            double cpu = processCpuLoad();
+
+            if (avgWait > targetWaitNanos && backlog > 0 && (cpu < 0 || cpu < CPU_CEILING))
+                grow(backlog);
+            else if (backlog == 0 && utilization < LOW_UTILIZATION)
+                shrink();
+        }
+
+        private int backlog() {
+            if (mode != Mode.WORK_STEALING)
+                return queuedRequests;
+            int queued = 0;
+            for (ConcurrentLinkedDeque<StealableRequest> deque : deques)
+                queued += deque.isEmpty() ? 0 : 1;  // a lower bound is enough here
+            return queued;
+        }
+
+        private double processCpuLoad() {
+            if (os instanceof com.sun.management.OperatingSystemMXBean)
+                return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            return -1;
+        }
+
+        private void grow(int backlog) {
+            List<Worker> started = new ArrayList<>();
+            lockMonitor();
+            try {
+                if (toShutdown || poolLimit >= maxPoolSize)
+                    return;
+                poolLimit = Math.min(maxPoolSize, poolLimit + Math.max(1, poolLimit / 4));
+                // new workers go straight to the backlog instead of waiting for the next execute
+                Worker w;
+                while (backlog-- > 0 && (w = unlockedNewWorker(null)) != null)
+                    started.add(w);
+            } finally {
+                monitor.unlock();
+                for (Worker w : started)
+                    w.thread.start();
+            }
+        }
+
+        private void shrink() {
+            lockMonitor();
+            try {
+                int floor = Math.max(corePoolSize, 1);
+                if (poolLimit <= floor)
+                    return;
+                poolLimit = Math.max(floor, poolLimit - Math.max(1, poolLimit / 4));
+            } finally {
+                monitor.unlock();
+            }
+            // idle workers above the new limit see it and leave
+            wakeIdleWorkers();
         }
     }
 
     public boolean awaitTermination(int timeout)throws InterruptedException{
-        monitor.lock();
+        lockMonitor();
         try {
             if (doneshutdown) return true;
             if(!toShutdown) unlockedShutDown();
@@ -105,7 +939,7 @@ public class SimpleThreadPoolExecutor {
                     if (th.isTimed()) {
                         if ((timeout = (int)th.value()) <= 0) {
                             totalWorkerThreads = 0;
-                            availableThreads.removeAll(availableThreads);
+                            availableThreads.clear();
                             return false;
                         }
                         shutdownCondition.await(timeout, TimeUnit.MILLISECONDS);
@@ -137,6 +971,13 @@ public class SimpleThreadPoolExecutor {
         Runnable command;
         Condition condition;
         boolean done;
+        boolean discarded;
+        TimeoutHolder deadline;
+        final long enqueuedAt = System.nanoTime();
+
+        boolean expired() {
+            return SimpleThreadPoolExecutor.expired(deadline);
+        }
 
         public Request(Runnable command) {
             this.command = command;
@@ -145,87 +986,653 @@ public class SimpleThreadPoolExecutor {
         }
     }
 
-    private class WorkerThread extends Thread {
+    private static class StealableRequest {
+        static final int PENDING = 0, TAKEN = 1, CANCELLED = 2, SHED = 3;
+
+        final Runnable command;
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        final long enqueuedAt = System.nanoTime();
+        TimeoutHolder deadline;     // written before the request is published
+
+        StealableRequest(Runnable command) {
+            this.command = command;
+        }
+
+        // the worker that wins this CAS runs the command; a cancelled request is skipped
+        boolean tryClaim() {
+            return state.compareAndSet(PENDING, TAKEN);
+        }
+
+        boolean tryCancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        boolean expired() {
+            return SimpleThreadPoolExecutor.expired(deadline);
+        }
+
+        // a worker found it past its deadline
+        boolean tryShed() {
+            return state.compareAndSet(PENDING, SHED);
+        }
+    }
+
+    // one entry per idle period of a worker: the submitter that CASes the command
+    // from null claims the worker; the worker itself withdraws by CASing WITHDRAWN
+    private static class IdleNode {
+        static final Runnable WITHDRAWN = () -> { };
+
+        final Thread worker;
+        final AtomicReference<Runnable> cmd = new AtomicReference<>();
+        IdleNode next;
+
+        IdleNode(Thread worker) {
+            this.worker = worker;
+        }
+
+        boolean tryClaim(Runnable command) {
+            if (cmd.compareAndSet(null, command)) {
+                LockSupport.unpark(worker);
+                return true;
+            }
+            return false;
+        }
+
+        boolean tryWithdraw() {
+            return cmd.compareAndSet(null, WITHDRAWN);
+        }
+    }
+
+    // Treiber stack of idle workers; withdrawn entries are unlinked lazily by pop
+    static class IdleWorkerStack {
+        private final AtomicReference<IdleNode> top = new AtomicReference<>();
+
+        void push(IdleNode node) {
+            IdleNode observedTop;
+            do {
+                observedTop = top.get();
+                node.next = observedTop;
+            } while (!top.compareAndSet(observedTop, node));
+        }
+
+        private IdleNode pop() {
+            IdleNode observedTop;
+            do {
+                observedTop = top.get();
+                if (observedTop == null) return null;
+            } while (!top.compareAndSet(observedTop, observedTop.next));
+            return observedTop;
+        }
+
+        boolean handOff(Runnable command) {
+            IdleNode node;
+            while ((node = pop()) != null) {
+                if (node.tryClaim(command))
+                    return true;
+            }
+            return false;
+        }
+
+        void wakeAll() {
+            for (IdleNode node = top.get(); node != null; node = node.next)
+                LockSupport.unpark(node.worker);
+        }
+
+        void clear() {
+            top.set(null);
+        }
+
+        public int size() {
+            int count = 0;
+            for (IdleNode node = top.get(); node != null; node = node.next)
+                if (node.cmd.get() == null) count++;
+            return count;
+        }
+
+        // entries still linked, the withdrawn ones included
+        int linkedNodes() {
+            int count = 0;
+            for (IdleNode node = top.get(); node != null; node = node.next)
+                count++;
+            return count;
+        }
+    }
+
+    // pending requests split in priority lanes, lane 0 first. Selection is weighted
+    // round robin: the current lane is served up to its weight in a row, then the next
+    // non empty lane gets its turn. A queued request is therefore taken after at most
+    // the sum of the other lanes' weights, whatever the load on the higher lanes.
+    // One lane behaves exactly as the former FIFO queue. Accessed under the monitor.
+    static class RequestLanes<R> {
+        private final LinkedList<R>[] lanes;
+        private final int[] weights;
+        private int current, credit;
+        private int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        RequestLanes(int[] weights) {
+            if (weights.length == 0)
+                throw new IllegalArgumentException("laneWeights");
+            this.weights = weights.clone();
+            lanes = new LinkedList[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] <= 0)
+                    throw new IllegalArgumentException("laneWeights");
+                lanes[i] = new LinkedList<>();
+            }
+            credit = this.weights[0];
+        }
+
+        int lanes() {
+            return lanes.length;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int size(int lane) {
+            return lanes[lane].size();
+        }
+
+        void add(int lane, R request) {
+            lanes[lane].addLast(request);
+            size++;
+        }
+
+        boolean remove(R request) {
+            for (LinkedList<R> lane : lanes) {
+                if (lane.remove(request)) {
+                    size--;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // the lane removeNext takes from; only called when size > 0
+        private int selectLane() {
+            if (credit > 0 && !lanes[current].isEmpty())
+                return current;
+            int lane = current;
+            do {
+                lane = (lane + 1) % lanes.length;
+            } while (lanes[lane].isEmpty());
+            return lane;
+        }
+
+        R peekNext() {
+            return lanes[selectLane()].getFirst();
+        }
+
+        R removeNext() {
+            int lane = selectLane();
+            if (lane != current || credit == 0) {
+                current = lane;
+                credit = weights[lane];
+            }
+            credit--;
+            size--;
+            return lanes[lane].removeFirst();
+        }
+
+        // DISCARD_OLDEST sheds the least urgent work first
+        R removeOldestOfLowest() {
+            for (int lane = lanes.length - 1; lane >= 0; lane--) {
+                if (!lanes[lane].isEmpty()) {
+                    size--;
+                    return lanes[lane].removeFirst();
+                }
+            }
+            throw new NoSuchElementException();
+        }
+    }
+
+    private class Worker implements Runnable {
         public Runnable cmd;
-        public Condition condition;
+        final Thread thread;
+        int slot;
+        final AtomicBoolean idle = new AtomicBoolean();
 
-        public WorkerThread(Runnable cmd){
+        public Worker(Runnable cmd){
             this.cmd = cmd;
-            condition = monitor.newCondition();
+            thread = mode == Mode.VIRTUAL_THREADS ? Thread.ofVirtual().unstarted(this) : new Thread(this);
         }
+
+        SimpleThreadPoolExecutor pool() {
+            return SimpleThreadPoolExecutor.this;
+        }
+
         @Override
         public void run(){
+            currentWorker.set(this);
+            // prestarted and work stealing workers start without a command and go look for one
+            if (cmd == null && !getWork(this))
+                return;
             do {
+                long start = System.nanoTime();
                 try {
                     cmd.run();
+                    metrics.completed.increment();
                 } catch (Exception ex) {
-                    lockedTerminateThread();
+                    // the worker keeps running, so it stays counted in totalWorkerThreads
+                    metrics.failed.increment();
                 }
+                recordRun(start);
             } while(getWork(this));
         }
     }
 
-    private boolean getWork(WorkerThread workerThread){
-        monitor.lock();
+    // run time of every task, failed ones included; completed and failed are counted apart
+    private void recordRun(long start) {
+        long ran = System.nanoTime() - start;
+        busyNanos.add(ran);
+        metrics.runTime.record(ran);
+    }
+
+    //--------------------------------------------
+    // fork/join support (see PoolTask): a worker that joins a subtask runs queued
+    // work instead of parking, so recursive jobs do not need extra workers
+
+    // the pool of the current thread, if it is one of its workers
+    static SimpleThreadPoolExecutor currentPool() {
+        Worker w = currentWorker.get();
+        return w != null ? w.pool() : null;
+    }
+
+    public <T> T invoke(PoolTask<T> task) throws InterruptedException {
+        if (currentPool() == this)
+            return task.invoke();
+        if (!execute(task, -1))
+            throw new RejectedExecutionException();
+        return task.join();
+    }
+
+    // queues a subtask forked by one of our workers; in work stealing mode it goes to
+    // the worker's own deque, where the worker finds it first when it joins
+    void fork(Runnable task) {
+        if (mode != Mode.WORK_STEALING) {
+            executeDetached(task);
+            return;
+        }
+        if(toShutdown)
+            throw new RejectedExecutionException();
+        metrics.submitted.increment();
+        deques[currentWorker.get().slot].addLast(new StealableRequest(task));
+        signalWork();
+    }
+
+    // called by a joining worker: runs one queued task, if there is one
+    boolean helpOnce() {
+        Runnable command;
+        if (mode == Mode.WORK_STEALING) {
+            if ((command = pollHelpWork(currentWorker.get())) == null)
+                return false;
+        } else {
+            if (queuedRequests == 0)
+                return false;
+            lockMonitor();
+            try {
+                if (pendingRequests.size() == 0 || (command = takeRequest()) == null)
+                    return false;
+            } finally {
+                monitor.unlock();
+            }
+        }
+        long start = System.nanoTime();
         try {
-            if(pendingRequests.size() > 0){
-                Request request = pendingRequests.removeFirst();
-                workerThread.cmd = request.command;
-                request.done = true;
-                request.condition.signal();
-                return true;
+            command.run();
+            metrics.completed.increment();
+        } catch (Exception ex) {
+            // the failure belongs to that task, not to the one joining
+            metrics.failed.increment();
+        }
+        recordRun(start);
+        return true;
+    }
+
+    // newest subtask of our own deque first (the children we are likely to join),
+    // then the oldest ones of the other deques
+    private Runnable pollHelpWork(Worker w) {
+        StealableRequest request;
+        Runnable command;
+        while ((request = deques[w.slot].pollLast()) != null) {
+            if ((command = claim(request)) != null)
+                return command;
+        }
+        int n = deques.length;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            int victim = (start + i) % n;
+            if (victim == w.slot) continue;
+            while ((request = deques[victim].pollFirst()) != null) {
+                if ((command = claim(request)) != null)
+                    return command;
             }
-            TimeoutHolder th = new TimeoutHolder(keepAliveTime);
-            do
-            {
-                if (pendingRequests.size() == 0 && toShutdown) {
-                    unlockedTerminateThread();
-                    return false;
-                }
+        }
+        return null;
+    }
 
-                if (toShutdown) { //but still has work to finish
-                    Request request = pendingRequests.removeFirst();
-                    workerThread.cmd = request.command;
-                    request.done = true;
-                    request.condition.signal();
-                    return true;
-                }
+    private boolean getWork(Worker workerThread){
+        if (mode == Mode.WORK_STEALING)
+            return getStolenWork(workerThread);
 
-                if (th.isTimed()) {
-                    if ((keepAliveTime = (int)th.value()) <= 0) {
-                        availableThreads.remove(workerThread);
-                        --totalWorkerThreads;
+        TimeoutHolder th = new TimeoutHolder(keepAliveTime);
+        do {
+            if (queuedRequests > 0 || toShutdown) {
+                lockMonitor();
+                try {
+                    Runnable command;
+                    //including shutdown with work still to finish
+                    if (pendingRequests.size() > 0 && (command = takeRequest()) != null) {
+                        workerThread.cmd = command;
+                        return true;
+                    }
+                    if (toShutdown) {
+                        unlockedTerminateThread();
                         return false;
                     }
-                    availableThreads.add(workerThread);
-                    workerThread.condition.await(keepAliveTime, TimeUnit.MILLISECONDS);
-
-                } else {
-                    availableThreads.add(workerThread);
-                    workerThread.condition.await();
+                } finally {
+                    monitor.unlock();
                 }
+            }
 
-                if(pendingRequests.size() > 0){
-                    workerThread.cmd = pendingRequests.removeFirst().command;
-                    return true;
-                }
-            } while (true);
+            // the controller lowered the limit: surplus workers leave as soon as they are idle
+            if (totalWorkerThreads > poolLimit && tryExpire(null))
+                return false;
+
+            // publish ourselves as idle, then look again at the queue: either we see a
+            // request queued meanwhile or its submitter sees us on the stack
+            IdleNode node = new IdleNode(workerThread.thread);
+            availableThreads.push(node);
+            if ((queuedRequests > 0 || toShutdown) && node.tryWithdraw())
+                continue;
+            if (blockedSubmitters > 0)
+                signalNotFull();
+
+            while (node.cmd.get() == null) {
+                if (th.isTimed()) {
+                    long millisTimeout = th.value();
+                    if (millisTimeout <= 0) {
+                        if (queuedRequests > 0 && node.tryWithdraw())
+                            break;
+                        if (tryExpire(node))
+                            return false;
+                        // a core worker stays, idle on the same node
+                        th = new TimeoutHolder(keepAliveTime);
+                        continue;
+                    }
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(millisTimeout));
+                } else
+                    LockSupport.park(this);
+                if ((toShutdown || totalWorkerThreads > poolLimit) && node.tryWithdraw())
+                    break;
+            }
 
-        } catch (InterruptedException e) {
+            Runnable command = node.cmd.get();
+            if (command != IdleNode.WITHDRAWN) {
+                workerThread.cmd = command;
+                return true;
+            }
+        } while (true);
+    }
 
+    // keep alive expired or the pool is above its limit: leave, unless a request was
+    // queued while we were idle or we are needed to keep the core size. The idle node,
+    // if any, is withdrawn under the monitor, so a worker that stays keeps it; if a
+    // submitter claimed it first, the worker stays to run that command
+    private boolean tryExpire(IdleNode node) {
+        lockMonitor();
+        try {
+            if (pendingRequests.size() > 0)
+                return false;
+            if (!toShutdown && totalWorkerThreads <= corePoolSize && totalWorkerThreads <= poolLimit)
+                return false;
+            if (node != null && !node.tryWithdraw())
+                return false;
+            if (toShutdown) {
+                // the last worker to leave completes the shutdown
+                unlockedTerminateThread();
+                return true;
+            }
+            --totalWorkerThreads;
+            return true;
         } finally {
             monitor.unlock();
         }
+    }
+
+    // the command of the next queued request, or the expiry handler call for an expired
+    // one; null when the queue only held expired requests and there is no handler
+    private Runnable takeRequest() {
+        while (pendingRequests.size() > 0) {
+            Request request = pendingRequests.removeNext();
+            requestDequeued();
+            if (request.expired()) {
+                Runnable onExpiry = unlockedShed(request);
+                if (onExpiry != null)
+                    return onExpiry;
+                continue;
+            }
+            recordQueueWait(request.enqueuedAt);
+            request.done = true;
+            request.condition.signal();
+            return request.command;
+        }
+        return null;
+    }
 
+    // the request was removed from pendingRequests without running
+    private Runnable unlockedShed(Request request) {
+        metrics.shed.increment();
+        request.discarded = true;
+        request.condition.signal();
+        return expiryCall(request.command);
+    }
+
+    // hands queued requests, in the order the lanes select them, to workers that are
+    // on the idle stack
+    private void unlockedDispatchToIdle() {
+        while (pendingRequests.size() > 0) {
+            Request request = pendingRequests.peekNext();
+            boolean expired = request.expired();
+            Runnable command = expired ? expiryCall(request.command) : request.command;
+            if (command != null && !availableThreads.handOff(command))
+                return;
+            pendingRequests.removeNext();
+            requestDequeued();
+            if (expired) {
+                unlockedShed(request);
+                continue;
+            }
+            recordQueueWait(request.enqueuedAt);
+            request.done = true;
+            request.condition.signal();
+        }
+    }
+
+    //--------------------------------------------
+    // work stealing mode
+
+    // the command goes to the submitting worker's own deque, everyone else's round-robin;
+    // a worker that takes it after the deadline sheds it
+    private boolean stealableExecute(Runnable command, TimeoutHolder deadline) {
+        if (toShutdown)
+            throw new RejectedExecutionException();
+
+        StealableRequest request = new StealableRequest(command);
+        request.deadline = deadline;
+        Worker current = currentWorker.get();
+        int slot;
+        if (current != null && current.pool() == this)
+            slot = current.slot;
+        else
+            slot = (nextDeque.getAndIncrement() & Integer.MAX_VALUE) % deques.length;
+        deques[slot].addLast(request);
+
+        signalWork();
+
+        // shutdown may have started after the first check; withdraw if nobody took it yet
+        if (toShutdown && request.tryCancel())
+            throw new RejectedExecutionException();
+        return true;
+    }
+
+    private boolean[] stealableExecuteAll(Runnable[] batch) {
+        if (toShutdown)
+            throw new RejectedExecutionException();
+
+        StealableRequest[] requests = new StealableRequest[batch.length];
+        Worker current = currentWorker.get();
+        boolean own = current != null && current.pool() == this;
+        int slot = own ? current.slot : (nextDeque.getAndAdd(batch.length) & Integer.MAX_VALUE) % deques.length;
+        for (int i = 0; i < batch.length; i++) {
+            requests[i] = new StealableRequest(batch[i]);
+            deques[own ? slot : (slot + i) % deques.length].addLast(requests[i]);
+        }
+        // one wake up (or new worker) per task, the surplus finds the deques empty
+        for (int i = 0; i < batch.length && (idleWorkers.get() > 0 || totalWorkerThreads < poolLimit); i++)
+            signalWork();
+
+        if (toShutdown) {
+            for (StealableRequest request : requests)
+                request.tryCancel();
+            throw new RejectedExecutionException();
+        }
+        boolean[] accepted = new boolean[batch.length];
+        Arrays.fill(accepted, true);
+        return accepted;
+    }
+
+    // wakes the most recently idle worker or, if there is none, starts a new one when
+    // the pool is not full
+    private void signalWork() {
+        Worker w;
+        while ((w = idleStack.pollFirst()) != null) {
+            if (w.idle.compareAndSet(true, false)) {
+                idleWorkers.decrementAndGet();
+                LockSupport.unpark(w.thread);
+                return;
+            }
+        }
+        if (totalWorkerThreads < poolLimit) {
+            Worker newWorker = null;
+            lockMonitor();
+            try {
+                if (!toShutdown)
+                    newWorker = unlockedNewWorker(null);
+            } finally {
+                monitor.unlock();
+                if (newWorker != null)
+                    newWorker.thread.start();
+            }
+        }
+    }
+
+    // own deque first (FIFO), then steal from the opposite end of the other deques
+    private boolean findWork(Worker w) {
+        StealableRequest request;
+        ConcurrentLinkedDeque<StealableRequest> own = deques[w.slot];
+        Runnable command;
+        while ((request = own.pollFirst()) != null) {
+            if ((command = claim(request)) != null) {
+                w.cmd = command;
+                return true;
+            }
+        }
+        int n = deques.length;
+        int start = ThreadLocalRandom.current().nextInt(n);
+        for (int i = 0; i < n; i++) {
+            int victim = (start + i) % n;
+            if (victim == w.slot) continue;
+            while ((request = deques[victim].pollLast()) != null) {
+                if ((command = claim(request)) != null) {
+                    w.cmd = command;
+                    return true;
+                }
+            }
+        }
         return false;
     }
 
-    private void lockedTerminateThread(){
-        monitor.lock();
+    // the command to run for a request polled from a deque: null if another worker or
+    // the submitter got it first, or if it expired and there is no expiry handler
+    private Runnable claim(StealableRequest request) {
+        if (request.expired()) {
+            if (!request.tryShed())
+                return null;
+            metrics.shed.increment();
+            return expiryCall(request.command);
+        }
+        if (!request.tryClaim())
+            return null;
+        recordQueueWait(request.enqueuedAt);
+        return request.command;
+    }
+
+    // a worker that stops being idle by itself also takes its entry out of idleStack;
+    // one woken by signalWork had it polled already
+    private void clearIdle(Worker w) {
+        if (w.idle.compareAndSet(true, false)) {
+            idleWorkers.decrementAndGet();
+            idleStack.remove(w);
+        }
+    }
+
+    private boolean getStolenWork(Worker w) {
+        w.cmd = null;
+        TimeoutHolder th = new TimeoutHolder(keepAliveTime);
+        do {
+            if (findWork(w))
+                return true;
+
+            if (toShutdown || totalWorkerThreads > poolLimit || (th.isTimed() && th.value() <= 0)) {
+                if (tryRetire(w))
+                    return false;
+                if (w.cmd != null)      // tryRetire found a request
+                    return true;
+                th = new TimeoutHolder(keepAliveTime);
+                continue;
+            }
+
+            // declare ourselves idle before the last look, so that a submitter either
+            // sees us idle or we see its request
+            w.idle.set(true);
+            idleWorkers.incrementAndGet();
+            idleStack.addFirst(w);
+            if (findWork(w)) {
+                clearIdle(w);
+                return true;
+            }
+            if (th.isTimed())
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(th.value()));
+            else
+                LockSupport.park(this);
+            clearIdle(w);
+        } while (true);
+    }
+
+    // leaves the pool unless it is needed for the core size or a request shows up
+    // after our slot was given back
+    private boolean tryRetire(Worker w) {
+        lockMonitor();
         try {
-            unlockedTerminateThread();
+            if (!toShutdown && totalWorkerThreads <= corePoolSize && totalWorkerThreads <= poolLimit)
+                return false;
+            --totalWorkerThreads;
+            workers.set(w.slot, null);
+            if (findWork(w)) {
+                ++totalWorkerThreads;
+                workers.set(w.slot, w);
+                return false;
+            }
+            if (toShutdown && totalWorkerThreads == 0) {
+                doneshutdown = true;
+                shutdownCondition.signal();
+            }
+            return true;
         } finally {
-          monitor.unlock();
+            monitor.unlock();
         }
     }
 
@@ -0,0 +1,28 @@
+
+// JMX view of a SimpleThreadPoolExecutor, registered by SimpleThreadPoolExecutor.registerMBean
+public interface SimpleThreadPoolExecutorMXBean {
+
+    int getMaxPoolSize();
+    int getCorePoolSize();
+    int getPoolLimit();
+    int getKeepAliveTime();
+
+    int getTotalWorkerThreads();
+    int getIdleWorkers();
+    int getQueuedRequests();
+
+    long getTasksSubmitted();
+    long getTasksCompleted();
+    long getTasksFailed();
+    long getTasksRejected();
+    long getTasksTimedOut();
+    long getTasksShed();
+
+    double getQueuedTimeMeanMillis();
+    double getQueuedTimeP99Millis();
+    double getRunTimeMeanMillis();
+    double getRunTimeP99Millis();
+
+    long getLockWaitNanos();
+    long getLockContentions();
+}
@@ -0,0 +1,226 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/***
+ *  Hashed timing wheel driven by a single ticker thread.
+ *
+ *  Scheduling and cancelling only touch lock-free queues, so both are O(1)
+ *  whatever the number of pending timers. The buckets are owned by the ticker
+ *  thread, which moves new timers into them, unlinks the cancelled ones and,
+ *  on each tick, hands the due ones to the dispatcher.
+ ***/
+
+public final class TimerWheel {
+
+    public static class Timeout {
+        private static final int WAITING = 0, EXPIRED = 1, CANCELLED = 2;
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long periodNanos;     // 0 for one shot timers
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // owned by the ticker thread
+        private long deadline;              // nanos since the wheel started
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev, next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadline, long periodNanos) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+            this.periodNanos = periodNanos;
+        }
+
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return false;
+            wheel.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() { return state.get() == CANCELLED; }
+
+        public boolean isExpired() { return state.get() == EXPIRED; }
+
+        // what the dispatcher runs: the task and, for periodic timers, the next schedule
+        private void run() {
+            if (periodNanos == 0) {
+                task.run();
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                // like ScheduledExecutorService, a failed execution suppresses the next ones
+                state.compareAndSet(WAITING, CANCELLED);
+                throw ex;
+            }
+            if (state.get() == WAITING) {
+                deadline += periodNanos;    // fixed rate, measured from the first deadline
+                wheel.pendingTimeouts.add(this);
+            }
+        }
+    }
+
+    private static class Bucket {
+        Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) t.prev.next = next;
+            if (t.next != null) t.next.prev = t.prev;
+            if (t == head) head = next;
+            if (t == tail) tail = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+            return next;
+        }
+    }
+
+    // bounds the work of a single tick when a burst of timers is scheduled
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Consumer<Runnable> dispatcher;
+
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private final Thread ticker;
+    private final long startTime;
+    private volatile boolean stopped;
+    private long tick;
+
+    // wheelSize is rounded up to a power of two
+    public TimerWheel(int tickMillis, int wheelSize, Consumer<Runnable> dispatcher) {
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException();
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize) size <<= 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        this.mask = size - 1;
+        this.dispatcher = dispatcher;
+        this.startTime = System.nanoTime();
+        this.ticker = new Thread(this::runTicker, "timer-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(task, delay, 0, unit);
+    }
+
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0)
+            throw new IllegalArgumentException("period");
+        return add(task, initialDelay, period, unit);
+    }
+
+    private Timeout add(Runnable task, long delay, long period, TimeUnit unit) {
+        if (stopped)
+            throw new IllegalStateException("timer wheel stopped");
+        long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(this, task, deadline, unit.toNanos(period));
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    // pending timers are dropped; a task that is already running is not affected
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(ticker);
+    }
+
+    //-------------------------------
+    // ticker thread
+
+    private void runTicker() {
+        while (!stopped) {
+            long tickDeadline = tickNanos * (tick + 1);
+            long sleep;
+            while ((sleep = tickDeadline - (System.nanoTime() - startTime)) > 0 && !stopped)
+                LockSupport.parkNanos(this, sleep);
+            if (stopped)
+                break;
+
+            transferPending();
+            unlinkCancelled();
+            expire(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+        }
+        for (Bucket bucket : wheel)
+            for (Timeout t = bucket.head; t != null; t = bucket.remove(t))
+                t.state.compareAndSet(Timeout.WAITING, Timeout.CANCELLED);
+        Timeout t;
+        while ((t = pendingTimeouts.poll()) != null)
+            t.state.compareAndSet(Timeout.WAITING, Timeout.CANCELLED);
+    }
+
+    private void transferPending() {
+        Timeout t;
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (t = pendingTimeouts.poll()) != null; i++) {
+            if (t.state.get() != Timeout.WAITING)
+                continue;
+            long ticks = t.deadline / tickNanos;
+            t.remainingRounds = (ticks - tick) / wheel.length;
+            // a deadline that already passed goes into the current bucket
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+        }
+    }
+
+    private void unlinkCancelled() {
+        Timeout t;
+        while ((t = cancelledTimeouts.poll()) != null) {
+            if (t.bucket != null)
+                t.bucket.remove(t);
+        }
+    }
+
+    private void expire(Bucket bucket, long tickDeadline) {
+        Timeout t = bucket.head;
+        while (t != null) {
+            if (t.remainingRounds > 0) {
+                t.remainingRounds--;
+                t = t.next;
+                continue;
+            }
+            if (t.deadline > tickDeadline) {   // belongs to a later round
+                t = t.next;
+                continue;
+            }
+            Timeout next = bucket.remove(t);
+            boolean fire = t.periodNanos == 0
+                    ? t.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)
+                    : t.state.get() == Timeout.WAITING;
+            if (fire) {
+                try {
+                    dispatcher.accept(t::run);
+                } catch (RuntimeException ex) {
+                    // the dispatcher refused the task (e.g. the executor is shutting down)
+                }
+            }
+            t = next;
+        }
+    }
+}
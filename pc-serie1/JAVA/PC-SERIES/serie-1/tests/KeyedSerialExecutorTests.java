@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KeyedSerialExecutorTests {
+
+    @Test
+    public void test_order_per_key() throws InterruptedException {
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(4, 2000);
+        KeyedSerialExecutor<Integer> strands = new KeyedSerialExecutor<>(threadPool);
+        int keys = 50, tasksPerKey = 200;
+        int[] next = new int[keys];
+        AtomicInteger[] running = new AtomicInteger[keys];
+        boolean[] failed = new boolean[1];
+        for (int k = 0; k < keys; k++)
+            running[k] = new AtomicInteger();
+
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < producers.length; p++) {
+            int first = p * keys / 2;
+            producers[p] = new Thread(() -> {
+                for (int i = 0; i < tasksPerKey; i++) {
+                    for (int k = first; k < first + keys / 2; k++) {
+                        int key = k, seq = i;
+                        strands.execute(key, () -> {
+                            if (running[key].incrementAndGet() != 1 || next[key] != seq)
+                                failed[0] = true;
+                            next[key]++;
+                            running[key].decrementAndGet();
+                        });
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread t : producers)
+            t.join();
+
+        TimeUnit.SECONDS.sleep(1);
+        assertTrue(!failed[0]);
+        for (int k = 0; k < keys; k++)
+            assertEquals(tasksPerKey, next[k]);
+        // the mailboxes of idle keys are gone
+        assertEquals(0, strands.activeKeys());
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_blocked_key_does_not_block_others() throws InterruptedException {
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(2, 2000);
+        KeyedSerialExecutor<String> strands = new KeyedSerialExecutor<>(threadPool);
+        boolean cont[] = new boolean[1];
+        AtomicInteger done = new AtomicInteger();
+
+        strands.execute("a", () -> { while(!cont[0]) Thread.yield(); });
+        strands.execute("a", done::incrementAndGet);
+        strands.execute("b", done::incrementAndGet);
+        strands.execute("b", done::incrementAndGet);
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(2, done.get());   // "b" ran, the second "a" waits for the first
+        cont[0] = true;
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(3, done.get());
+
+        threadPool.shutDown();
+    }
+}
@@ -1,8 +1,11 @@
 import org.junit.jupiter.api.Test;
 
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MessageQueueTests {
 
@@ -74,4 +77,112 @@ public class MessageQueueTests {
         assertEquals(true, sendStatus[0].isSent());
         assertEquals(msg, receivedMsg[0]);
     }
+
+    // waits until every thread is parked, in await or elsewhere
+    private static void awaitParked(Thread... threads) throws InterruptedException {
+        for (Thread t : threads) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+                assertTrue(System.currentTimeMillis() < deadline, t.getName() + " did not park");
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void one_receive_releases_every_awaiter() throws InterruptedException {
+        MessageQueue<String> messageQueue = new MessageQueue<>();
+        SendStatus sendStatus = messageQueue.send("message");
+
+        Thread[] awaiters = new Thread[4];
+        boolean[] awaitRes = new boolean[awaiters.length];
+        for (int i = 0; i < awaiters.length; i++) {
+            int index = i;
+            awaiters[i] = new Thread(() -> {
+                try {
+                    awaitRes[index] = sendStatus.await(-1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            awaiters[i].start();
+        }
+        awaitParked(awaiters);
+
+        assertEquals(Optional.of("message"), messageQueue.receive(0));
+        for (int i = 0; i < awaiters.length; i++) {
+            awaiters[i].join(5000);
+            assertFalse(awaiters[i].isAlive(), "awaiter " + i + " left parked");
+            assertEquals(true, awaitRes[i]);
+        }
+    }
+
+    @Test
+    public void timed_await_racing_receive_and_tryCancel_agrees_with_them() throws InterruptedException {
+        for (int round = 0; round < 500; round++) {
+            MessageQueue<Integer> messageQueue = new MessageQueue<>();
+            SendStatus sendStatus = messageQueue.send(round);
+            int timeout = 1 + round % 3;
+            boolean[] awaitRes = new boolean[1], cancelled = new boolean[1];
+
+            Thread awaiter = new Thread(() -> {
+                try {
+                    awaitRes[0] = sendStatus.await(timeout);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            Thread canceller = new Thread(() -> cancelled[0] = sendStatus.tryCancel());
+            awaiter.start();
+            if (round % 2 == 0)
+                canceller.start();
+            TimeUnit.MILLISECONDS.sleep(round % 4);
+            boolean received = messageQueue.receive(0).isPresent();
+            awaiter.join(5000);
+            if (round % 2 == 0)
+                canceller.join();
+
+            assertFalse(awaiter.isAlive(), "round " + round + ": awaiter left parked");
+            // a timed out await takes the message back, so it was received only if the await says so
+            assertEquals(received, awaitRes[0], "round " + round);
+            assertEquals(received, sendStatus.isSent(), "round " + round);
+            assertFalse(received && cancelled[0], "round " + round + ": received and cancelled");
+        }
+    }
+
+    @Test
+    public void interrupted_await_takes_the_message_back() throws InterruptedException {
+        MessageQueue<String> messageQueue = new MessageQueue<>();
+        SendStatus sendStatus = messageQueue.send("message");
+        Object[] results = new Object[2];
+
+        Thread interrupted = new Thread(() -> {
+            try {
+                results[0] = sendStatus.await(-1);
+            } catch (InterruptedException e) {
+                results[0] = e;
+            }
+        });
+        Thread timed = new Thread(() -> {
+            try {
+                results[1] = sendStatus.await(500);
+            } catch (InterruptedException e) {
+                results[1] = e;
+            }
+        });
+        interrupted.start();
+        timed.start();
+        awaitParked(interrupted, timed);
+
+        interrupted.interrupt();
+        interrupted.join(5000);
+        assertTrue(results[0] instanceof InterruptedException);
+        assertEquals(false, sendStatus.isSent());
+        assertEquals(Optional.empty(), messageQueue.receive(0));
+
+        // the other awaiter is still waiting, and times out
+        timed.join(5000);
+        assertFalse(timed.isAlive());
+        assertEquals(false, results[1]);
+    }
 }
@@ -0,0 +1,65 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ *  Submission throughput of SimpleThreadPoolExecutor, for 1 to N cores, with the
+ *  shared queue and with the work stealing mode.
+ *
+ *  For each core count c, c producer threads submit small tasks into a pool
+ *  with maxPoolSize = c and we measure tasks per second until all ran.
+ *
+ *  Run with: java SimpleThreadPoolExecutorBenchmark [tasksPerProducer] [maxCores]
+ ***/
+
+public class SimpleThreadPoolExecutorBenchmark {
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) throws InterruptedException {
+        int tasksPerProducer = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int maxCores = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("%-6s %18s %18s%n", "cores", "SHARED_QUEUE ops/s", "WORK_STEALING ops/s");
+        for (int cores = 1; cores <= maxCores; cores = cores < maxCores ? Math.min(cores * 2, maxCores) : cores + 1) {
+            long shared = 0, stealing = 0;
+            for (int i = 0; i <= WARMUP_ROUNDS; i++) {
+                shared = run(SimpleThreadPoolExecutor.Mode.SHARED_QUEUE, cores, tasksPerProducer);
+                stealing = run(SimpleThreadPoolExecutor.Mode.WORK_STEALING, cores, tasksPerProducer);
+            }
+            System.out.printf("%-6d %18d %18d%n", cores, shared, stealing);
+        }
+    }
+
+    private static long run(SimpleThreadPoolExecutor.Mode mode, int cores, int tasksPerProducer)
+            throws InterruptedException {
+        SimpleThreadPoolExecutor pool = new SimpleThreadPoolExecutor(cores, 1000, mode);
+        long total = (long) cores * tasksPerProducer;
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong executed = new AtomicLong();
+        Runnable task = () -> {
+            if (executed.incrementAndGet() == total)
+                done.countDown();
+        };
+
+        Thread[] producers = new Thread[cores];
+        for (int i = 0; i < cores; i++) {
+            producers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < tasksPerProducer; j++)
+                        pool.execute(task, -1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread t : producers) t.start();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        pool.shutDown();
+        pool.awaitTermination(5000);
+        return total * 1_000_000_000L / elapsed;
+    }
+}
@@ -1,10 +1,20 @@
 import org.junit.jupiter.api.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.sql.Time;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SimpleThreadPoolExecutorTests {
@@ -165,4 +175,611 @@ public class SimpleThreadPoolExecutorTests {
         assertEquals(0, threadPool.availableThreads.size());
         assertEquals(0,threadPool.totalWorkerThreads);
     }
+
+    @Test
+    public void test_workStealing() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool =
+                new SimpleThreadPoolExecutor(4, 2000, SimpleThreadPoolExecutor.Mode.WORK_STEALING);
+        AtomicInteger executed = new AtomicInteger();
+        Runnable r = executed::incrementAndGet;
+
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 1000; j++)
+                        assertTrue(threadPool.execute(r, -1));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread t : producers) t.join();
+
+        assertTrue(threadPool.totalWorkerThreads <= 4);
+        assertTrue(threadPool.awaitTermination(2000));
+        assertEquals(4000, executed.get());
+        assertEquals(0, threadPool.totalWorkerThreads);
+    }
+
+    @Test
+    public void test_workStealing_worker_submits_without_waiting() throws InterruptedException {
+
+        // the only worker submits to its own deque: it must not wait for a worker to take it
+        SimpleThreadPoolExecutor threadPool =
+                new SimpleThreadPoolExecutor(1, 2000, SimpleThreadPoolExecutor.Mode.WORK_STEALING);
+        CountDownLatch submitted = new CountDownLatch(1), ran = new CountDownLatch(1);
+        assertTrue(threadPool.execute(() -> {
+            try {
+                if (threadPool.execute(ran::countDown, -1))
+                    submitted.countDown();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, -1));
+
+        assertTrue(submitted.await(2, TimeUnit.SECONDS));
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        assertTrue(threadPool.awaitTermination(2000));
+        assertEquals(0, threadPool.totalWorkerThreads);
+    }
+
+    @Test
+    public void test_boundedQueue_saturation() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool =
+                new SimpleThreadPoolExecutor(1, 5000, 1, SimpleThreadPoolExecutor.Saturation.CALLER_RUNS);
+        boolean cont[] = new boolean[1];
+        cont[0] = false;
+        Runnable r1 = () -> {
+            while(!cont[0]) Thread.yield();
+        };
+
+        threadPool.execute(r1, -1); // occupies the only worker
+
+        Thread t1 = new Thread(() -> {
+            try {
+                threadPool.execute(r1, -1); // occupies the only queue slot
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        t1.start();
+        TimeUnit.SECONDS.sleep(1);
+        assertEquals(1, threadPool.pendingRequests.size());
+
+        Thread[] runner = new Thread[1];
+        assertTrue(threadPool.execute(() -> runner[0] = Thread.currentThread(), -1));
+        assertEquals(Thread.currentThread(), runner[0]);
+        assertEquals(1, threadPool.getRejectedCount());
+
+        cont[0] = true;
+        t1.join();
+        threadPool.shutDown();
+    }
+
+    // queueCapacity 0: a command goes straight to an idle worker; while the only worker is
+    // busy for 200 ms, the saturation policy decides
+    private static SimpleThreadPoolExecutor busyDirectHandoffPool(SimpleThreadPoolExecutor.Saturation saturation)
+            throws InterruptedException {
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(1, 10000, 0, saturation);
+        busyFor200ms(threadPool);
+        return threadPool;
+    }
+
+    private static void busyFor200ms(SimpleThreadPoolExecutor threadPool) throws InterruptedException {
+        assertTrue(threadPool.execute(() -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }, 2000));
+    }
+
+    // the thread that ran the command, once the worker is idle again
+    private static Thread runWhenIdle(SimpleThreadPoolExecutor threadPool) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(400);
+        Thread[] runner = new Thread[1];
+        CountDownLatch ran = new CountDownLatch(1);
+        assertTrue(threadPool.execute(() -> { runner[0] = Thread.currentThread(); ran.countDown(); }, 2000));
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+        return runner[0];
+    }
+
+    @Test
+    public void test_zeroCapacity_block_waits_for_an_idle_worker() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = busyDirectHandoffPool(SimpleThreadPoolExecutor.Saturation.BLOCK);
+        long start = System.nanoTime();
+        assertTrue(threadPool.execute(() -> { }, 2000));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+
+        busyFor200ms(threadPool);
+        boolean[] accepted = new boolean[1];
+        Thread submitter = new Thread(() -> {
+            try {
+                accepted[0] = threadPool.execute(() -> { }, -1);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        submitter.start();
+        submitter.join(2000);
+        assertFalse(submitter.isAlive());
+        assertTrue(accepted[0]);
+        assertEquals(0, threadPool.getRejectedCount());
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_zeroCapacity_callerRuns() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = busyDirectHandoffPool(SimpleThreadPoolExecutor.Saturation.CALLER_RUNS);
+        Thread[] runner = new Thread[1];
+        assertTrue(threadPool.execute(() -> runner[0] = Thread.currentThread(), 2000));
+        assertEquals(Thread.currentThread(), runner[0]);
+        assertEquals(1, threadPool.getRejectedCount());
+
+        assertTrue(runWhenIdle(threadPool) != Thread.currentThread());
+        assertEquals(1, threadPool.getRejectedCount());
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_zeroCapacity_discardOldest_has_nothing_to_discard() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = busyDirectHandoffPool(SimpleThreadPoolExecutor.Saturation.DISCARD_OLDEST);
+        try {
+            threadPool.execute(() -> { }, 2000);
+            assertTrue(false);
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, threadPool.getRejectedCount());
+        }
+
+        assertTrue(runWhenIdle(threadPool) != Thread.currentThread());
+        assertEquals(1, threadPool.getRejectedCount());
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_zeroCapacity_reject() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = busyDirectHandoffPool(SimpleThreadPoolExecutor.Saturation.REJECT);
+        try {
+            threadPool.execute(() -> { }, 2000);
+            assertTrue(false);
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, threadPool.getRejectedCount());
+        }
+
+        assertTrue(runWhenIdle(threadPool) != Thread.currentThread());
+        assertEquals(1, threadPool.getRejectedCount());
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_zeroCapacity_handler() throws InterruptedException {
+
+        AtomicInteger handled = new AtomicInteger();
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(1, 10000, 0,
+                (command, executor) -> { handled.incrementAndGet(); return false; });
+        busyFor200ms(threadPool);
+        assertFalse(threadPool.execute(() -> { }, 2000));
+        assertEquals(1, handled.get());
+
+        assertTrue(runWhenIdle(threadPool) != Thread.currentThread());
+        assertEquals(1, handled.get());
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_virtualThreads() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool =
+                new SimpleThreadPoolExecutor(2000, 2000, SimpleThreadPoolExecutor.Mode.VIRTUAL_THREADS);
+        CountDownLatch allStarted = new CountDownLatch(2000);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable r = () -> {
+            allStarted.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        };
+
+        for (int i = 0; i < 2000; i++)
+            assertTrue(threadPool.execute(r, 0));
+
+        // every task blocks at the same time, without 2000 OS threads
+        assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(2000, threadPool.totalWorkerThreads);
+        assertTrue(!threadPool.execute(r, 0));
+
+        release.countDown();
+        assertTrue(threadPool.awaitTermination(2000));
+        assertEquals(0, threadPool.totalWorkerThreads);
+    }
+
+    @Test
+    public void test_submit_and_invokeAll() throws Exception {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(3, 2000);
+
+        CompletableFuture<String> future = threadPool.submit(() -> "result");
+        assertEquals("result", future.get(1, TimeUnit.SECONDS));
+
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int n = i;
+            tasks.add(() -> n * n);
+        }
+        List<CompletableFuture<Integer>> results = threadPool.invokeAll(tasks, 2000);
+        for (int i = 0; i < 10; i++)
+            assertEquals(i * i, (int) results.get(i).get());
+
+        List<Callable<String>> any = new ArrayList<>();
+        any.add(() -> { throw new IllegalStateException(); });
+        any.add(() -> "any");
+        assertEquals("any", threadPool.invokeAny(any, 2000));
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_schedule() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(2, 2000);
+        CountDownLatch delayed = new CountDownLatch(1);
+        AtomicInteger periodic = new AtomicInteger();
+        boolean[] cancelledRan = new boolean[1];
+
+        long start = System.currentTimeMillis();
+        threadPool.schedule(delayed::countDown, 300);
+        TimerWheel.Timeout cancelled = threadPool.schedule(() -> cancelledRan[0] = true, 300);
+        TimerWheel.Timeout rate = threadPool.scheduleAtFixedRate(periodic::incrementAndGet, 0, 100);
+        assertTrue(cancelled.cancel());
+
+        assertTrue(delayed.await(2, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+
+        TimeUnit.MILLISECONDS.sleep(700);
+        rate.cancel();
+        int runs = periodic.get();
+        assertTrue(runs >= 7 && runs <= 12);
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertEquals(runs, periodic.get());
+        assertTrue(!cancelledRan[0]);
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_adaptiveSizing_grows_under_load_and_shrinks_back() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(8, 200);
+        threadPool.setCorePoolSize(2);
+        threadPool.prestartCoreThreads();
+        threadPool.startAdaptiveSizing(20, 5);
+        assertEquals(2, threadPool.getPoolLimit());
+
+        // blocked tasks: requests wait in the queue while the CPU is idle
+        Runnable sleeper = () -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(50);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        };
+        Thread[] producers = new Thread[16];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 20; j++)
+                        threadPool.execute(sleeper, -1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            producers[i].start();
+        }
+        int maxLimit = 0, maxWorkers = 0;
+        for (Thread t : producers) {
+            while (t.isAlive()) {
+                maxLimit = Math.max(maxLimit, threadPool.getPoolLimit());
+                maxWorkers = Math.max(maxWorkers, threadPool.totalWorkerThreads);
+                t.join(10);
+            }
+        }
+        assertEquals(8, maxLimit);
+        assertTrue(maxWorkers > 2);
+
+        // idle: the limit goes back to the core size and the surplus workers leave
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((threadPool.getPoolLimit() > 2 || threadPool.totalWorkerThreads > 2) && System.nanoTime() < deadline)
+            TimeUnit.MILLISECONDS.sleep(20);
+        assertEquals(2, threadPool.getPoolLimit());
+        assertEquals(2, threadPool.totalWorkerThreads);
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_corePoolSize_prestart() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(4, 1000);
+        threadPool.setCorePoolSize(2);
+        assertEquals(2, threadPool.prestartCoreThreads());
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(2, threadPool.totalWorkerThreads);
+        assertEquals(2, threadPool.availableThreads.size());
+
+        boolean cont[] = new boolean[1];
+        Runnable r1 = () -> {
+            while(!cont[0]) Thread.yield();
+        };
+        for (int i = 0; i < 4; i++)
+            threadPool.execute(r1, -1);
+        assertEquals(4, threadPool.totalWorkerThreads);
+        cont[0] = true;
+
+        // only the workers above the core size expire
+        TimeUnit.MILLISECONDS.sleep(2500);
+        assertEquals(2, threadPool.totalWorkerThreads);
+        assertEquals(2, threadPool.availableThreads.size());
+
+        assertTrue(threadPool.awaitTermination(2000));
+        assertEquals(0, threadPool.totalWorkerThreads);
+    }
+
+    @Test
+    public void test_metrics() throws Exception {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(1, 2000);
+        boolean cont[] = new boolean[1];
+        Runnable r1 = () -> {
+            while(!cont[0]) Thread.yield();
+        };
+        threadPool.execute(r1, -1);
+        assertTrue(!threadPool.execute(r1, 100)); // times out in the queue
+        cont[0] = true;
+        for (int i = 0; i < 10; i++)
+            threadPool.execute(() -> { }, -1);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        PoolMetrics.Snapshot snapshot = threadPool.metrics();
+        assertEquals(12, snapshot.getSubmitted());
+        assertEquals(11, snapshot.getCompleted());
+        assertEquals(1, snapshot.getTimedOut());
+        assertEquals(11, snapshot.getRunTime().getCount());
+
+        ObjectName name = threadPool.registerMBean("test_metrics");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(11L, server.getAttribute(name, "TasksCompleted"));
+        assertEquals(1, server.getAttribute(name, "TotalWorkerThreads"));
+        server.unregisterMBean(name);
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_priorityLanes() throws InterruptedException {
+
+        // lane 0 is served three times for each turn of lane 1
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(1, 2000, new int[] { 3, 1 });
+        boolean cont[] = new boolean[1];
+        threadPool.execute(() -> {
+            while(!cont[0]) Thread.yield();
+        }, -1);
+
+        StringBuffer order = new StringBuffer();
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int lane = i < 4 ? 1 : 0;
+            Thread t = new Thread(() -> {
+                try {
+                    threadPool.execute(() -> order.append(lane == 0 ? 'H' : 'L'), lane, 5000);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            submitters.add(t);
+            t.start();
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertEquals(4, threadPool.pendingRequests.size(0));
+        assertEquals(4, threadPool.pendingRequests.size(1));
+
+        cont[0] = true;
+        for (Thread t : submitters)
+            t.join();
+        TimeUnit.MILLISECONDS.sleep(200);
+        // the low lane is not starved by the high one
+        assertEquals("HHHLHLLL", order.toString());
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_executeAll() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(2, 2000);
+        AtomicInteger executed = new AtomicInteger();
+        List<Runnable> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            batch.add(executed::incrementAndGet);
+
+        boolean[] accepted = threadPool.executeAll(batch, 1000);
+        for (boolean a : accepted)
+            assertTrue(a);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(10, executed.get());
+        assertEquals(2, threadPool.totalWorkerThreads);
+
+        // one busy worker and room for two requests: the rest of the batch is rejected
+        SimpleThreadPoolExecutor bounded =
+                new SimpleThreadPoolExecutor(1, 2000, 2, SimpleThreadPoolExecutor.Saturation.REJECT);
+        boolean cont[] = new boolean[1];
+        List<Runnable> blocked = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            blocked.add(() -> { while(!cont[0]) Thread.yield(); });
+        accepted = bounded.executeAll(blocked, 200);
+        assertTrue(accepted[0]);
+        assertTrue(!accepted[1] && !accepted[2]);  // timed out in the queue
+        assertTrue(!accepted[3] && !accepted[4]);  // rejected
+        assertEquals(0, bounded.pendingRequests.size());
+        assertEquals(2, bounded.getRejectedCount());
+        cont[0] = true;
+
+        threadPool.shutDown();
+        bounded.shutDown();
+    }
+
+    // sums [from, to) splitting it in halves down to 1000 elements
+    private static class Sum extends PoolTask<Long> {
+        final int[] values;
+        final int from, to;
+
+        Sum(int[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= 1000) {
+                long sum = 0;
+                for (int i = from; i < to; i++) sum += values[i];
+                return sum;
+            }
+            int mid = (from + to) / 2;
+            Sum left = new Sum(values, from, mid), right = new Sum(values, mid, to);
+            right.fork();
+            return left.invoke() + right.join();
+        }
+    }
+
+    @Test
+    public void test_forkJoin() throws InterruptedException {
+        int[] values = new int[1_000_000];
+        for (int i = 0; i < values.length; i++) values[i] = i % 7;
+        long expected = 0;
+        for (int v : values) expected += v;
+
+        // 1000 subtasks joined by 2 workers: they help instead of waiting for more workers
+        for (SimpleThreadPoolExecutor.Mode mode : SimpleThreadPoolExecutor.Mode.values()) {
+            SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(2, 2000, mode);
+            assertEquals(expected, (long) threadPool.invoke(new Sum(values, 0, values.length)));
+            assertTrue(threadPool.totalWorkerThreads <= 2);
+            threadPool.shutDown();
+        }
+    }
+
+    @Test
+    public void test_deadline_shedding() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(1, 2000);
+        AtomicInteger expired = new AtomicInteger(), executed = new AtomicInteger();
+        threadPool.setExpiryHandler(command -> expired.incrementAndGet());
+        boolean cont[] = new boolean[1];
+        threadPool.execute(() -> {
+            while(!cont[0]) Thread.yield();
+        }, -1);
+
+        boolean[] accepted = new boolean[4];
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            int index = i;
+            // the last one has no deadline
+            TimeoutHolder deadline = i < 3 ? new TimeoutHolder(100) : null;
+            Thread t = new Thread(() -> {
+                try {
+                    accepted[index] = threadPool.execute(executed::incrementAndGet,
+                            SimpleThreadPoolExecutor.NORMAL_PRIORITY, -1, deadline);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            submitters.add(t);
+            t.start();
+        }
+        TimeUnit.MILLISECONDS.sleep(300);
+        cont[0] = true;
+        for (Thread t : submitters)
+            t.join();
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        assertTrue(!accepted[0] && !accepted[1] && !accepted[2] && accepted[3]);
+        assertEquals(1, executed.get());
+        assertEquals(3, expired.get());
+        assertEquals(3, threadPool.getShedCount());
+        // already expired when submitted
+        assertTrue(!threadPool.execute(executed::incrementAndGet,
+                SimpleThreadPoolExecutor.NORMAL_PRIORITY, -1, new TimeoutHolder(0)));
+        assertEquals(4, threadPool.metrics().getShed());
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_failing_task_keeps_worker_counted() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(2, 2000);
+        threadPool.execute(() -> { throw new IllegalStateException("fails"); }, -1);
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+        for (int i = 0; i < 6; i++) {
+            threadPool.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                } catch (InterruptedException e) { }
+                running.decrementAndGet();
+            }, -1);
+        }
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        assertEquals(2, maxRunning.get());
+        PoolMetrics.Snapshot snapshot = threadPool.metrics();
+        assertEquals(2, snapshot.getTotalWorkerThreads());
+        assertEquals(1, snapshot.getFailed());
+        assertEquals(6, snapshot.getCompleted());
+        assertEquals(7, snapshot.getRunTime().getCount());
+
+        threadPool.shutDown();
+    }
+
+    @Test
+    public void test_shutDown_racing_keepAlive_expiry() throws InterruptedException {
+
+        // the worker's keep alive runs out around the shutdown: either way the pool terminates
+        for (int i = 0; i < 2000; i++) {
+            SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(1, 2);
+            threadPool.execute(() -> { }, -1);
+            TimeUnit.MICROSECONDS.sleep(1500 + (i % 10) * 100);
+            threadPool.shutDown();
+            assertTrue(threadPool.awaitTermination(200));
+        }
+    }
+
+    @Test
+    public void test_idle_core_workers_reuse_their_node() throws InterruptedException {
+
+        SimpleThreadPoolExecutor threadPool = new SimpleThreadPoolExecutor(2, 5);
+        threadPool.setCorePoolSize(2);
+        assertEquals(2, threadPool.prestartCoreThreads());
+
+        // about 200 keep alive periods with nothing to do
+        TimeUnit.SECONDS.sleep(1);
+        assertEquals(2, threadPool.totalWorkerThreads);
+        assertEquals(2, threadPool.availableThreads.size());
+        assertEquals(2, threadPool.availableThreads.linkedNodes());
+
+        assertTrue(threadPool.awaitTermination(2000));
+    }
 }
@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/***
+ *  Publish/subscribe over MessageQueues, after the .NET EventBus: the thread
+ *  that calls subscribeEvent handles the events of that type until shutdown.
+ *
+ *  Every subscriber has its own mailbox, a MessageQueue bounded to maxPending
+ *  events. The subscribers of each event type are kept in an array that is
+ *  replaced, never changed, when somebody subscribes or leaves, so
+ *  publishEvent reads it without a lock and only does a send per subscriber.
+ *  When a mailbox is full the publisher does not wait: the SlowConsumerPolicy
+ *  says what to give up.
+ *  Every event that publishEvent counts as delivered is handled: a subscriber
+ *  is only told to stop once no publisher is sending to it.
+ ***/
+
+public class EventBus {
+
+    public enum SlowConsumerPolicy {
+        DROP_NEWEST,    // the event being published is not delivered to that subscriber
+        DROP_OLDEST,    // the oldest event in the mailbox is discarded to make room
+        DISCONNECT      // the subscriber is removed; subscribeEvent returns false once it handled its mailbox
+    }
+
+    // ends a subscriber's loop; it is not counted in pending
+    private static final Object CLOSE = new Object();
+    private static final int MAX_BATCH = 64;
+    private static final Subscriber[] NONE = new Subscriber[0];
+
+    private final int maxPending;
+    private final SlowConsumerPolicy policy;
+    private final ConcurrentHashMap<Class<?>, Subscriber[]> subscribers = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Lock monitor = new ReentrantLock();
+    private final Condition shutdownCondition = monitor.newCondition();
+    private int active;
+    private volatile boolean toShutdown;
+
+    public EventBus(int maxPending) {
+        this(maxPending, SlowConsumerPolicy.DROP_NEWEST);
+    }
+
+    public EventBus(int maxPending, SlowConsumerPolicy policy) {
+        if (maxPending <= 0)
+            throw new IllegalArgumentException("maxPending");
+        this.maxPending = maxPending;
+        this.policy = policy;
+    }
+
+    private class Subscriber {
+        static final int CLOSED = 1 << 30;
+
+        final Class<?> type;
+        // only the subscriber's thread receives, unless old events are dropped by publishers
+        final MessageQueue<Object> mailbox = policy == SlowConsumerPolicy.DROP_OLDEST
+                ? MessageQueues.multiProducerMultiConsumer()
+                : MessageQueues.multiProducerSingleConsumer();
+        final AtomicInteger pending = new AtomicInteger();
+        // CLOSED plus the number of publishers sending to the mailbox: whoever leaves it
+        // closed with no publishers sends CLOSE, so no event is ever queued behind it
+        final AtomicInteger state = new AtomicInteger();
+        volatile boolean disconnected;
+
+        Subscriber(Class<?> type) {
+            this.type = type;
+        }
+
+        // false once the subscriber is closed
+        boolean enter() {
+            int s;
+            do {
+                if (((s = state.get()) & CLOSED) != 0)
+                    return false;
+            } while (!state.compareAndSet(s, s + 1));
+            return true;
+        }
+
+        void leave() {
+            if (state.decrementAndGet() == CLOSED)
+                mailbox.send(CLOSE);
+        }
+
+        void close() {
+            int s;
+            do {
+                if (((s = state.get()) & CLOSED) != 0)
+                    return;
+            } while (!state.compareAndSet(s, s | CLOSED));
+            if (s == 0)
+                mailbox.send(CLOSE);
+        }
+    }
+
+    //-------------------------------
+    // subscribing
+
+    // handles the events of the given type in the calling thread, until shutdown (true)
+    // or until it is disconnected for being too slow (false)
+    public <T> boolean subscribeEvent(Class<T> type, Consumer<? super T> handler) throws InterruptedException {
+        monitor.lock();
+        try {
+            if (toShutdown)
+                throw new IllegalStateException("shutdown");
+            active++;
+        } finally {
+            monitor.unlock();
+        }
+
+        Subscriber sub = new Subscriber(type);
+        try {
+            subscribers.compute(type, (t, subs) -> {
+                if (subs == null)
+                    return new Subscriber[] { sub };
+                Subscriber[] copy = Arrays.copyOf(subs, subs.length + 1);
+                copy[subs.length] = sub;
+                return copy;
+            });
+            // a shutdown that did not see us in the map is seen here
+            if (toShutdown)
+                sub.close();
+
+            List<Object> events = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                events.clear();
+                sub.mailbox.drainTo(events, MAX_BATCH, -1);
+                for (Object event : events) {
+                    if (event == CLOSE)
+                        return !sub.disconnected;
+                    sub.pending.decrementAndGet();
+                    handler.accept(type.cast(event));
+                }
+            }
+        } finally {
+            removeSubscriber(sub);
+            monitor.lock();
+            try {
+                if (--active == 0)
+                    shutdownCondition.signalAll();
+            } finally {
+                monitor.unlock();
+            }
+        }
+    }
+
+    private void removeSubscriber(Subscriber sub) {
+        subscribers.computeIfPresent(sub.type, (t, subs) -> {
+            int i = Arrays.asList(subs).indexOf(sub);
+            if (i < 0)
+                return subs;
+            if (subs.length == 1)
+                return null;    // the entry of the type goes with its last subscriber
+            Subscriber[] copy = new Subscriber[subs.length - 1];
+            System.arraycopy(subs, 0, copy, 0, i);
+            System.arraycopy(subs, i + 1, copy, i, copy.length - i);
+            return copy;
+        });
+    }
+
+    //-------------------------------
+    // publishing
+
+    // delivers the event to the subscribers of its exact class; returns how many of them
+    // accepted it. Never waits for a subscriber.
+    public int publishEvent(Object event) {
+        if (toShutdown)
+            throw new IllegalStateException("shutdown");
+        int delivered = 0;
+        for (Subscriber sub : subscribers.getOrDefault(event.getClass(), NONE)) {
+            // a shutdown or a disconnect that closes the subscriber meanwhile waits for us
+            if (!sub.enter())
+                continue;
+            try {
+                if (offer(sub, event))
+                    delivered++;
+            } finally {
+                sub.leave();
+            }
+        }
+        return delivered;
+    }
+
+    private boolean offer(Subscriber sub, Object event) {
+        if (sub.pending.incrementAndGet() > maxPending) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    sub.pending.decrementAndGet();
+                    dropped.increment();
+                    return false;
+                case DROP_OLDEST:
+                    dropOldest(sub);
+                    break;
+                case DISCONNECT:
+                    sub.pending.decrementAndGet();
+                    dropped.increment();
+                    sub.disconnected = true;
+                    removeSubscriber(sub);
+                    sub.close();
+                    return false;
+            }
+        }
+        sub.mailbox.send(event);
+        return true;
+    }
+
+    private void dropOldest(Subscriber sub) {
+        List<Object> oldest = new ArrayList<>(1);
+        try {
+            sub.mailbox.drainTo(oldest, 1, 0);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();     // drainTo did not wait; keep the interrupt
+        }
+        if (oldest.isEmpty())
+            return;     // the subscriber took them meanwhile
+        // never CLOSE: it is only sent once no publisher is inside the subscriber
+        sub.pending.decrementAndGet();
+        dropped.increment();
+    }
+
+    // events not delivered because of the slow consumer policy
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    //-------------------------------
+    // shutdown
+
+    // no more events are published; waits for the subscribers to handle what
+    // they have in their mailboxes and leave
+    public void shutdown() throws InterruptedException {
+        toShutdown = true;
+        for (Subscriber[] subs : subscribers.values())
+            for (Subscriber sub : subs)
+                sub.close();
+        monitor.lock();
+        try {
+            while (active > 0)
+                shutdownCondition.await();
+        } finally {
+            monitor.unlock();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/***
+ *  Durable MessageQueue: every message is appended to a journal before it is
+ *  queued, and comes back after a restart until it is acknowledged.
+ *
+ *  The journal is a directory of fixed size segments, each memory mapped; a
+ *  message is encoded straight into the mapped segment, so sending costs a copy
+ *  into the page cache and no system call. A flusher thread forces the dirty
+ *  segments to disk every flushInterval (group commit): sync() waits for the
+ *  next flush, so all the callers that sync together share one fsync.
+ *
+ *  Records are [length][crc32][payload] and never cross a segment; a length of
+ *  -1 sends the reader to the next segment and 0 marks the end of the journal.
+ *  Offsets are positions in the journal: segment n starts at n * segmentSize.
+ *  The acknowledged offset (everything before it was acknowledged) is kept in
+ *  a checkpoint file forced with the segments; on open, the records from that
+ *  offset on are queued again, so delivery is at least once.
+ ***/
+
+public class JournaledMessageQueue<T> implements Closeable {
+
+    public interface Codec<T> {
+        int size(T message);
+        // writes exactly size(message) bytes at the buffer's position
+        void encode(T message, ByteBuffer buffer);
+        // the buffer holds exactly one encoded message
+        T decode(ByteBuffer buffer);
+    }
+
+    public static Codec<String> utf8() {
+        return new Codec<String>() {
+            public int size(String message) {
+                return message.getBytes(StandardCharsets.UTF_8).length;
+            }
+            public void encode(String message, ByteBuffer buffer) {
+                buffer.put(message.getBytes(StandardCharsets.UTF_8));
+            }
+            public String decode(ByteBuffer buffer) {
+                return StandardCharsets.UTF_8.decode(buffer).toString();
+            }
+        };
+    }
+
+    // a received message; ack() releases its place in the journal
+    public interface Delivery<T> {
+        T message();
+        long offset();
+        void ack();
+    }
+
+    private static final int HEADER = 8, SKIP = -1;
+    private static final String SEGMENT_SUFFIX = ".segment", CHECKPOINT = "ack.checkpoint";
+
+    private final Path directory;
+    private final Codec<T> codec;
+    private final int segmentSize;
+    private final MessageQueue<Entry> queue = new MessageQueue<>();
+
+    // append state, guarded by appendLock
+    private final Lock appendLock = new ReentrantLock();
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private MappedByteBuffer current;
+    private long currentBase;
+    private final CRC32 crc = new CRC32();
+    private volatile long writePosition;
+
+    // received and not acknowledged, plus queued: the checkpoint is the smallest
+    private final ConcurrentSkipListSet<Long> unacknowledged = new ConcurrentSkipListSet<>();
+    private final MappedByteBuffer checkpoint;
+    private final FileChannel checkpointChannel;
+    // acknowledged segments not deleted yet; only the flusher (and close, after it) uses it
+    private final List<Long> obsolete = new ArrayList<>();
+
+    // group commit
+    private final Lock flushLock = new ReentrantLock();
+    private final Condition flushed = flushLock.newCondition();
+    private volatile long flushedPosition;
+    private final Thread flusher;
+    private final long flushIntervalNanos;
+    private volatile boolean closed;
+
+    public JournaledMessageQueue(Path directory, Codec<T> codec, int segmentSize, int flushIntervalMillis)
+            throws IOException {
+        if (segmentSize < 2 * HEADER + 4 || flushIntervalMillis <= 0)
+            throw new IllegalArgumentException();
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        Files.createDirectories(directory);
+
+        checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        checkpoint = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        recover(checkpoint.getLong(0));
+
+        flusher = new Thread(this::runFlusher, "journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    //-------------------------------
+    // sending
+
+    // the message is in the journal (not yet on disk, see sync) and queued when this returns
+    public SendStatus send(T message) throws IOException {
+        int size = codec.size(message);
+        if (size + HEADER + 4 > segmentSize)
+            throw new IllegalArgumentException("message larger than a segment");
+        long offset;
+        appendLock.lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("closed");
+            int position = current.position();
+            if (position + HEADER + size + 4 > segmentSize) {   // keep room for the end mark
+                current.putInt(position, SKIP);
+                roll(currentBase + segmentSize);
+                position = 0;
+            }
+            // payload first: the length that makes the record visible is written last
+            ByteBuffer payload = current.duplicate();
+            payload.position(position + HEADER);
+            payload.limit(position + HEADER + size);
+            codec.encode(message, payload.slice());
+            crc.reset();
+            payload.position(position + HEADER);
+            crc.update(payload);
+            current.putInt(position + 4, (int) crc.getValue());
+            current.putInt(position + HEADER + size, 0);            // end mark
+            current.putInt(position, size);
+            current.position(position + HEADER + size);
+            offset = currentBase + position;
+            writePosition = currentBase + current.position();
+            unacknowledged.add(offset);
+        } finally {
+            appendLock.unlock();
+        }
+        SendStatus status = queue.send(new Entry(message, offset));
+        // a cancelled message counts as acknowledged, so that it is not redelivered
+        return new SendStatus() {
+            public boolean isSent() { return status.isSent(); }
+            public boolean await(int timeout) throws InterruptedException { return status.await(timeout); }
+            public CompletableFuture<Void> onSent() { return status.onSent(); }
+            public boolean tryCancel() {
+                if (!status.tryCancel())
+                    return false;
+                unacknowledged.remove(offset);
+                return true;
+            }
+        };
+    }
+
+    // waits, at most timeout, until every message sent before the call is on disk
+    public boolean sync(int timeout) throws InterruptedException {
+        long target = writePosition;
+        if (flushedPosition >= target)
+            return true;
+        if (timeout == 0)
+            return false;
+
+        boolean timed = timeout > 0;
+        long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+        flushLock.lock();
+        try {
+            while (flushedPosition < target) {
+                if (closed)
+                    return false;
+                if (timed && nanosTimeout <= 0)
+                    return false;
+                if (timed)
+                    nanosTimeout = flushed.awaitNanos(nanosTimeout);
+                else
+                    flushed.await();
+            }
+            return true;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    //-------------------------------
+    // receiving
+
+    public Optional<Delivery<T>> receive(long timeout) throws InterruptedException {
+        Optional<Entry> entry = queue.receive(timeout);
+        return entry.isPresent() ? Optional.<Delivery<T>>of(entry.get()) : Optional.<Delivery<T>>empty();
+    }
+
+    private class Entry implements Delivery<T> {
+        final T message;
+        final long offset;
+
+        Entry(T message, long offset) {
+            this.message = message;
+            this.offset = offset;
+        }
+
+        public T message() { return message; }
+
+        public long offset() { return offset; }
+
+        // persisted with the next flush
+        public void ack() {
+            unacknowledged.remove(offset);
+        }
+    }
+
+    //-------------------------------
+    // segments
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    // under appendLock (or in the constructor)
+    private void roll(long base) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            current = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        currentBase = base;
+        segments.put(base, current);
+    }
+
+    // queues again every record from the acknowledged offset on
+    private void recover(long acknowledged) throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            if (base + segmentSize <= acknowledged) {
+                Files.delete(segmentPath(base));    // acknowledged, the deletion did not happen before
+                continue;
+            }
+            roll(base);
+            int position = replay(current, base, acknowledged);
+            current.position(position);
+            if (position < segmentSize && current.getInt(position) != SKIP)
+                break;  // end of the journal
+        }
+        if (current == null) {
+            // a new journal starts at the first segment boundary not before the checkpoint
+            roll((acknowledged + segmentSize - 1) / segmentSize * segmentSize);
+        }
+        writePosition = flushedPosition = currentBase + current.position();
+    }
+
+    // returns the position where the segment ends (a skip mark or the end of the journal)
+    private int replay(MappedByteBuffer segment, long base, long acknowledged) {
+        int position = 0;
+        CRC32 check = new CRC32();
+        while (position + HEADER <= segmentSize) {
+            int size = segment.getInt(position);
+            if (size <= 0 || position + HEADER + size > segmentSize)
+                return position;
+            ByteBuffer payload = segment.duplicate();
+            payload.position(position + HEADER);
+            payload.limit(position + HEADER + size);
+            check.reset();
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != segment.getInt(position + 4)) {
+                segment.putInt(position, 0);  // torn write at the crash: the journal ends here
+                return position;
+            }
+            long offset = base + position;
+            if (offset >= acknowledged) {
+                unacknowledged.add(offset);
+                queue.send(new Entry(codec.decode(payload.slice()), offset));
+            }
+            position += HEADER + size;
+        }
+        return position;
+    }
+
+    //-------------------------------
+    // group commit
+
+    private void runFlusher() {
+        while (!closed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(flushIntervalNanos);
+            } catch (InterruptedException ie) {
+                // close
+            }
+            try {
+                flush();
+            } catch (IOException ex) {
+                // the waiters of sync time out; the next flush tries again
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        long target;
+        List<MappedByteBuffer> dirty = new ArrayList<>();
+        long ack;
+        appendLock.lock();
+        try {
+            target = writePosition;
+            if (target == flushedPosition && checkpoint.getLong(0) == acknowledgedOffset() && obsolete.isEmpty())
+                return;
+            // every segment written since the last flush
+            dirty.addAll(segments.tailMap(flushedPosition - flushedPosition % segmentSize, true).values());
+            ack = acknowledgedOffset();
+        } finally {
+            appendLock.unlock();
+        }
+        for (MappedByteBuffer segment : dirty)
+            segment.force();
+        checkpoint.putLong(0, ack);
+        checkpoint.force();
+
+        flushLock.lock();
+        try {
+            flushedPosition = target;
+            flushed.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+        // only after the waiters of sync are released: a failed delete must not hold them
+        deleteAcknowledgedSegments(ack);
+    }
+
+    private long acknowledgedOffset() {
+        Long first = unacknowledged.isEmpty() ? null : unacknowledged.first();
+        return first != null ? first : writePosition;
+    }
+
+    // best effort: a segment that cannot be deleted now is tried again by the next
+    // flush, and one left behind by a crash is deleted by recover
+    private void deleteAcknowledgedSegments(long ack) {
+        appendLock.lock();
+        try {
+            List<Long> acknowledged = new ArrayList<>(segments.headMap(ack - ack % segmentSize, false).keySet());
+            for (long base : acknowledged) {
+                if (base != currentBase) {
+                    segments.remove(base);
+                    obsolete.add(base);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        for (Iterator<Long> it = obsolete.iterator(); it.hasNext(); ) {
+            try {
+                Files.deleteIfExists(segmentPath(it.next()));
+                it.remove();
+            } catch (IOException ex) {
+                // stays in obsolete
+            }
+        }
+    }
+
+    // flushes what was sent and stops the flusher; unacknowledged messages are
+    // delivered again by the next instance opened on the same directory
+    @Override
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        checkpointChannel.close();
+        flushLock.lock();
+        try {
+            flushed.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
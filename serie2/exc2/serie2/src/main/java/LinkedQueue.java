@@ -1,9 +1,12 @@
-
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicReference;
 
+// Michael and Scott queue: any number of producers and consumers (see MpscLinkedQueue
+// and SpscLinkedQueue for the specialized variants)
 public class LinkedQueue<E> {
 
-    private static class Node<T>{
+    static class Node<T>{
         final T item;
         final AtomicReference<Node<T>> next;
         public Node(T item, Node<T> next){
@@ -11,7 +14,7 @@ public class LinkedQueue<E> {
             this.next = new AtomicReference<Node<T>>(next);
         }
     }
-    private final AtomicReference<Node<E>> head,tail;
+    final AtomicReference<Node<E>> head,tail;
 
     public LinkedQueue(){
         Node<E> dummy = new Node<E>(null,null);
@@ -38,6 +41,40 @@ public class LinkedQueue<E> {
             }
         }while (true);
     }
+    // links the whole batch with one CAS on the next of the last node; the tail
+    // then jumps to the end of the chain (or other threads advance it node by node)
+    public void putAll(Collection<? extends E> items){
+        Iterator<? extends E> it = items.iterator();
+        if(!it.hasNext()) return;
+        Node<E> first = new Node<>(it.next(),null), last = first;
+        while(it.hasNext()){
+            Node<E> node = new Node<>(it.next(),null);
+            last.next.set(node);
+            last = node;
+        }
+        Node<E> observedTail,observedTailNext;
+
+        do{
+            observedTail = tail.get();
+            observedTailNext = observedTail.next.get();
+            if(observedTail == tail.get()){
+                if(observedTailNext != null)
+                    tail.compareAndSet(observedTail,observedTailNext);
+                else {
+                    if(observedTail.next.compareAndSet(null,first)){
+                        tail.compareAndSet(observedTail,last);
+                        return;
+                    }
+                }
+            }
+        }while (true);
+    }
+
+    // a snapshot: a concurrent put may be linked right after it
+    public boolean isEmpty(){
+        return head.get().next.get() == null;
+    }
+
     public E tryRemove(){
         Node<E> observedHead,observedTail,observedHeadNext;
 
@@ -59,4 +96,39 @@ public class LinkedQueue<E> {
         }while (true);
     }
 
+    // removes up to max items with one CAS on head, never moving it past the observed
+    // tail; returns the number of items added to "to"
+    public int tryRemoveAll(Collection<? super E> to, int max){
+        Node<E> observedHead,observedTail,observedHeadNext;
+        if(max <= 0) return 0;
+
+        do{
+            observedHead = head.get();
+            observedTail = tail.get();
+            observedHeadNext = observedHead.next.get();
+
+            if(observedHead == head.get()){
+                if(observedHead == observedTail){
+                    if(observedHeadNext == null) return 0;
+                    tail.compareAndSet(observedTail,observedHeadNext);
+                }else {
+                    Node<E> last = observedHeadNext, next;
+                    int count = 1;
+                    while(count < max && last != observedTail && (next = last.next.get()) != null){
+                        last = next;
+                        count++;
+                    }
+                    if(head.compareAndSet(observedHead,last)){
+                        // the nodes between the old and the new head are ours now
+                        for(Node<E> node = observedHeadNext; ; node = node.next.get()){
+                            to.add(node.item);
+                            if(node == last) break;
+                        }
+                        return count;
+                    }
+                }
+            }
+        }while (true);
+    }
+
 }
@@ -1,17 +1,77 @@
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class MessageQueue<T> {
 
     private final Lock monitor = new ReentrantLock();
     private final Condition requestCondition = monitor.newCondition();
+    private final Condition notFull = monitor.newCondition();
 
-    private final LinkedQueue<OperationStatus> pendingMessages = new LinkedQueue<>();
+    private final LinkedQueue<OperationStatus> pendingMessages;
+    // MpscLinkedQueue and SpscLinkedQueue must be drained by one thread only
+    private final boolean singleConsumer;
     private volatile int waiters;
+    private final WaitStrategy waitStrategy;
+
+    // free places when the queue is bounded, null otherwise; senders only take the
+    // lock to block when there are none. A cancelled message keeps its place until
+    // a receiver unlinks it
+    private final AtomicInteger permits;
+    private volatile int blockedSenders;
+
+    // receivers that wait as a future instead of a thread, in arrival order
+    private final ConcurrentLinkedDeque<AsyncReceive> asyncReceivers = new ConcurrentLinkedDeque<>();
+
+    public MessageQueue() {
+        this(WaitStrategy.BLOCKING);
+    }
+
+    // how receive and SendStatus.await wait before blocking
+    public MessageQueue(WaitStrategy waitStrategy) {
+        this(false, false, UNBOUNDED, waitStrategy);
+    }
+
+    // at most capacity messages pending: see trySend and send(message, timeout)
+    public MessageQueue(int capacity) {
+        this(capacity, WaitStrategy.BLOCKING);
+    }
+
+    public MessageQueue(int capacity, WaitStrategy waitStrategy) {
+        this(false, false, capacity, waitStrategy);
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity");
+    }
+
+    static final int UNBOUNDED = 0;
+
+    // see MessageQueues: the caller promises that send (resp. receive and drainTo)
+    // is only ever called by one thread at a time
+    MessageQueue(boolean singleProducer, boolean singleConsumer, int capacity, WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        this.permits = capacity > 0 ? new AtomicInteger(capacity) : null;
+        this.singleConsumer = singleConsumer;
+        if (!singleConsumer)
+            pendingMessages = new LinkedQueue<>();
+        else if (!singleProducer)
+            pendingMessages = new MpscLinkedQueue<>();
+        else
+            pendingMessages = new SpscLinkedQueue<>();
+    }
 
     public Optional<T> receive(long timeout) throws InterruptedException {
 
@@ -20,28 +80,26 @@ public class MessageQueue<T> {
         //Quando não há requests previamente registados
         //e há mensagens na fila de espera, este pedido pode ser logo processado
 
-        if ((operation = pendingMessages.tryRemove()) != null) {
-            if (!operation.completed) {
-                operation.completed = true;
-                if (operation.waiters != 0) { //é preciso adquirir o lock porque existem threads em espera
-                    monitor.lock();
-                    try {
-                        if (operation.waiters > 0) { //existe alguem que precise de ser desbloqueado, neste caso mensagens a espera de receivers
-                            operation.cond.signal();
-                            return Optional.of(operation.message);
-                        }
-                    } finally {
-                        monitor.unlock();
-                    }
-                }
-            }
+        if ((operation = take()) != null) {
+            complete(operation);
+            return Optional.of(operation.message);
         }
         if (timeout == 0)
             return Optional.empty();
 
         // if a time out was specified, get a time reference
         boolean timed = timeout > 0;
-        long nanosTimeout = timed ? TimeUnit.NANOSECONDS.toNanos(timeout) : 0L;
+        long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+
+        if (waitStrategy != WaitStrategy.BLOCKING) {
+            long deadline = timed ? System.nanoTime() + nanosTimeout : Long.MAX_VALUE;
+            if ((operation = spinReceive(deadline)) != null) {
+                complete(operation);
+                return Optional.of(operation.message);
+            }
+            if (timed)
+                nanosTimeout = deadline - System.nanoTime();
+        }
 
         monitor.lock();
         try {
@@ -49,11 +107,8 @@ public class MessageQueue<T> {
             waiters++;
             try {
                 do {
-                    if ((operation = pendingMessages.tryRemove()) != null) { //se existirem mensagens para serem recebidas
-                        operation.completed = true; //the message was sent
-                        operation.cond.signalAll(); //estando já na posse do lock, podemos sinalizar logo
-                        return Optional.of(operation.message);
-                    }
+                    if ((operation = take()) != null) //se existirem mensagens para serem recebidas
+                        break;
                     // check if the specified timeout expired
                     if (timed && nanosTimeout <= 0)
                         return Optional.empty();
@@ -70,83 +125,515 @@ public class MessageQueue<T> {
         } finally {
             monitor.unlock();
         }
+        // completed outside the lock: it may run the sender's onSent continuations
+        complete(operation);
+        return Optional.of(operation.message);
     }
 
+    // on a bounded queue, throws IllegalStateException when it is full
     public SendStatus send(T sentMsg) {
-        OperationStatus operationStatus = new OperationStatus(false, sentMsg, monitor.newCondition());
+        if (permits != null && !tryAcquire(1))
+            throw new IllegalStateException("full");
+        return enqueue(sentMsg);
+    }
+
+    // returns empty, without waiting, when the queue is full
+    public Optional<SendStatus> trySend(T sentMsg) {
+        if (permits != null && !tryAcquire(1))
+            return Optional.empty();
+        return Optional.of(enqueue(sentMsg));
+    }
+
+    // waits, at most timeout, for room in a bounded queue; empty if there was none
+    public Optional<SendStatus> send(T sentMsg, long timeout) throws InterruptedException {
+        if (permits == null || tryAcquire(1))
+            return Optional.of(enqueue(sentMsg));
+        if (timeout == 0)
+            return Optional.empty();
+
+        boolean timed = timeout > 0;
+        long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+        monitor.lock();
+        try {
+            blockedSenders++;
+            try {
+                // declared as blocked before trying again: a release either sees us or we see it
+                while (!tryAcquire(1)) {
+                    if (timed && nanosTimeout <= 0)
+                        return Optional.empty();
+                    if (timed)
+                        nanosTimeout = notFull.awaitNanos(nanosTimeout);
+                    else
+                        notFull.await();
+                }
+            } finally {
+                blockedSenders--;
+            }
+        } finally {
+            monitor.unlock();
+        }
+        return Optional.of(enqueue(sentMsg));
+    }
+
+    private boolean tryAcquire(int n) {
+        int available;
+        do {
+            if ((available = permits.get()) < n)
+                return false;
+        } while (!permits.compareAndSet(available, available - n));
+        return true;
+    }
+
+    // called for every message that leaves the queue
+    private void release(int n) {
+        if (permits == null)
+            return;
+        permits.addAndGet(n);
+        if (blockedSenders > 0) {
+            monitor.lock();
+            try {
+                if (n == 1)
+                    notFull.signal();
+                else
+                    notFull.signalAll();
+            } finally {
+                monitor.unlock();
+            }
+        }
+    }
+
+    private SendStatus enqueue(T sentMsg) {
+        OperationStatus operationStatus = new OperationStatus(sentMsg);
         pendingMessages.put(operationStatus);
         if(waiters > 0) {
             monitor.lock();
             try {
-                if(waiters > 0){
+                if(waiters > 0)
                     requestCondition.signal(); // only one thread can proceed execution
-                    return operationStatus;
-                }
             } finally {
                 monitor.unlock();
             }
         }
+        if(!asyncReceivers.isEmpty())
+            matchAsyncReceivers();
         return operationStatus;
     }
 
     //-------------------------------
+    // asynchronous receive: the future is completed by the thread of the send that
+    // provides its message, so nobody blocks waiting for it
 
-    private class OperationStatus implements SendStatus {
+    // not supported by the single consumer queues of MessageQueues: an async receive
+    // is completed by whichever thread sends, so the queue would have many consumers
+    public CompletableFuture<T> receiveAsync() {
+        requireMultiConsumer();
+        OperationStatus operation;
+        if ((operation = take()) != null) {
+            complete(operation);
+            return CompletableFuture.completedFuture(operation.message);
+        }
+        return register(new AtomicInteger(WAITING));
+    }
 
-        private volatile boolean completed;
-        private volatile int waiters;
-        private T message;
-        private Condition cond;
+    private void requireMultiConsumer() {
+        if (singleConsumer)
+            throw new UnsupportedOperationException("async receive on a single consumer queue");
+    }
 
-        public OperationStatus(boolean completed, T message, Condition cond) {
-            this.completed = completed;
-            this.message = message;
-            this.cond = cond;
+    private AsyncReceive register(AtomicInteger state) {
+        AsyncReceive receive = new AsyncReceive(state);
+        asyncReceivers.addLast(receive);
+        // a message sent before we were registered did not see us
+        matchAsyncReceivers();
+        return receive;
+    }
+
+    // pairs the oldest async receivers with the pending messages; the pairs are found
+    // under the lock, so two matchers never hold the same receiver, and completed
+    // after it is released, as completing a future runs its continuations
+    private void matchAsyncReceivers() {
+        List<AsyncReceive> receivers = new ArrayList<>();
+        List<OperationStatus> operations = new ArrayList<>();
+        monitor.lock();
+        try {
+            AsyncReceive receive;
+            while ((receive = asyncReceivers.pollFirst()) != null) {
+                if (!tryClaim(receive.state))
+                    continue;       // cancelled, or served by another queue (receiveAny)
+                OperationStatus operation = take();
+                if (operation == null) {
+                    receive.state.set(WAITING);
+                    asyncReceivers.addFirst(receive);
+                    // a send that put its message while the receiver was out of the deque
+                    // found no async receivers and did not match: look at the queue again
+                    if (!pendingMessages.isEmpty())
+                        continue;
+                    break;
+                }
+                receive.state.set(DONE);
+                receivers.add(receive);
+                operations.add(operation);
+            }
+        } finally {
+            monitor.unlock();
+        }
+        for (int i = 0; i < receivers.size(); i++) {
+            receivers.get(i).complete(operations.get(i).message);
+            complete(operations.get(i));
+        }
+    }
+
+    // the state of an async receive, shared by all its registrations when it waits on
+    // several queues: WAITING, CLAIMED while a matcher looks for a message for it, then
+    // DONE when it got one or WITHDRAWN. Claiming or withdrawing waits out a CLAIMED
+    // state, which only lasts for one take() of the matcher that holds it
+    private static final int WAITING = 0, CLAIMED = 1, DONE = 2, WITHDRAWN = 3;
+
+    private static boolean tryClaim(AtomicInteger state) {
+        return settle(state, CLAIMED);
+    }
+
+    private static boolean tryWithdraw(AtomicInteger state) {
+        return settle(state, WITHDRAWN);
+    }
+
+    private static boolean settle(AtomicInteger state, int to) {
+        do {
+            int s = state.get();
+            if (s == WAITING && state.compareAndSet(WAITING, to))
+                return true;
+            if (s == DONE || s == WITHDRAWN)
+                return false;
+            Thread.yield();
+        } while (true);
+    }
+
+    // cancel fails once a matcher gave it a message, which is then delivered
+    private class AsyncReceive extends CompletableFuture<T> {
+        final AtomicInteger state;
+
+        AsyncReceive(AtomicInteger state) {
+            this.state = state;
         }
 
         @Override
-        public boolean isSent() {
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!tryWithdraw(state))
+                return false;
+            asyncReceivers.remove(this);
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    //-------------------------------
+    // select: one receiver waits on several queues at once
+
+    // receives from whichever of the queues has a message first; waits, at most
+    // timeout, registered on all of them. The first send that matches the receive
+    // withdraws it from every other queue, atomically, by settling the shared state.
+    // As receiveAsync, not supported by single consumer queues; at least one queue is needed
+    @SafeVarargs
+    @SuppressWarnings("unchecked")
+    public static <T> Optional<T> receiveAny(long timeout, MessageQueue<? extends T>... queues)
+            throws InterruptedException {
+        if (queues.length == 0)
+            throw new IllegalArgumentException("queues");
+        for (MessageQueue<? extends T> queue : queues)
+            queue.requireMultiConsumer();
+        for (MessageQueue<? extends T> queue : queues) {
+            Optional<? extends T> message = queue.receive(0);
+            if (message.isPresent())
+                return Optional.of(message.get());
+        }
+        if (timeout == 0)
+            return Optional.empty();
+
+        AtomicInteger state = new AtomicInteger(WAITING);
+        CompletableFuture<?>[] receives = new CompletableFuture<?>[queues.length];
+        for (int i = 0; i < queues.length && state.get() != DONE; i++)
+            receives[i] = queues[i].register(state);
+        CompletableFuture<Object> any = CompletableFuture.anyOf(
+                Arrays.stream(receives).filter(r -> r != null).toArray(CompletableFuture<?>[]::new));
+        try {
+            try {
+                return Optional.of((T) (timeout < 0 ? any.get() : any.get(timeout, TimeUnit.MILLISECONDS)));
+            } catch (TimeoutException | InterruptedException ex) {
+                if (tryWithdraw(state)) {
+                    if (ex instanceof InterruptedException)
+                        throw (InterruptedException) ex;
+                    return Optional.empty();
+                }
+                // too late: a matcher already took a message for us
+                if (ex instanceof InterruptedException)
+                    Thread.currentThread().interrupt();
+                return Optional.of((T) any.join());
+            } catch (ExecutionException ex) {
+                throw new IllegalStateException(ex);     // receives are never completed exceptionally
+            }
+        } finally {
+            for (int i = 0; i < queues.length; i++)
+                if (receives[i] != null && !receives[i].isDone())
+                    queues[i].asyncReceivers.remove(receives[i]);
+        }
+    }
+
+    // all the messages are linked into pendingMessages at once and the waiting
+    // receivers are signalled under a single acquisition of the lock. On a bounded
+    // queue, throws IllegalStateException (and sends nothing) if they do not all fit
+    public List<SendStatus> sendAll(Collection<? extends T> messages) {
+        if (permits != null && !tryAcquire(messages.size()))
+            throw new IllegalStateException("full");
+        List<OperationStatus> operations = new ArrayList<>(messages.size());
+        for (T message : messages)
+            operations.add(new OperationStatus(message));
+        pendingMessages.putAll(operations);
+        if(waiters > 0) {
+            monitor.lock();
+            try {
+                for (int i = Math.min(waiters, operations.size()); i > 0; i--)
+                    requestCondition.signal();
+            } finally {
+                monitor.unlock();
+            }
+        }
+        if(!asyncReceivers.isEmpty())
+            matchAsyncReceivers();
+        return new ArrayList<SendStatus>(operations);
+    }
+
+    // receives up to max messages in one pass; waits, at most timeout, only while
+    // there is none. Returns the number of messages added to "to"
+    public int drainTo(Collection<? super T> to, int max, long timeout) throws InterruptedException {
+        if (max < 0)
+            throw new IllegalArgumentException("max");
+        List<OperationStatus> operations = new ArrayList<>();
+        if (takeAll(operations, max) == 0) {
+            if (timeout == 0 || max <= 0)
+                return 0;
+            boolean timed = timeout > 0;
+            long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+
             monitor.lock();
             try {
-                return completed;
+                waiters++;
+                try {
+                    while (takeAll(operations, max) == 0) {
+                        if (timed && nanosTimeout <= 0)
+                            return 0;
+                        if (timed)
+                            nanosTimeout = requestCondition.awaitNanos(nanosTimeout);
+                        else
+                            requestCondition.await();
+                    }
+                } finally {
+                    waiters--;
+                }
             } finally {
                 monitor.unlock();
             }
         }
+        completeAll(operations);
+        for (OperationStatus operation : operations)
+            to.add(operation.message);
+        return operations.size();
+    }
+
+    // removes the oldest message not cancelled; the cancelled ones before it are
+    // unlinked on the way
+    private OperationStatus take() {
+        OperationStatus operation;
+        while ((operation = pendingMessages.tryRemove()) != null) {
+            if (operation.claim())
+                return operation;
+            release(1);     // the place of the cancelled one
+        }
+        return null;
+    }
+
+    // as take, for up to max messages; returns the number added to "to"
+    private int takeAll(List<OperationStatus> to, int max) {
+        List<OperationStatus> removed = new ArrayList<>(Math.min(max, 16));
+        int taken = 0;
+        int cancelled = 0;
+        while (taken == 0 && pendingMessages.tryRemoveAll(removed, max) > 0) {
+            for (OperationStatus operation : removed)
+                if (operation.claim()) {
+                    to.add(operation);
+                    taken++;
+                } else {
+                    cancelled++;
+                }
+            removed.clear();
+        }
+        if (cancelled > 0)
+            release(cancelled);
+        return taken;
+    }
+
+    // polls pendingMessages as the wait strategy says, without being a registered waiter
+    private OperationStatus spinReceive(long deadline) {
+        List<OperationStatus> taken = new ArrayList<>(1);
+        waitStrategy.await(() -> takeAll(taken, 1) > 0, deadline);
+        return taken.isEmpty() ? null : taken.get(0);
+    }
+
+    // the operation was claimed by take; what is left is the place and the sender's continuations
+    private void complete(OperationStatus operation) {
+        release(1);
+        operation.fireSent();
+    }
+
+    private void completeAll(List<OperationStatus> operations) {
+        release(operations.size());
+        for (OperationStatus operation : operations)
+            operation.fireSent();
+    }
+
+    //-------------------------------
+
+    // OperationStatus.state is null while the message is pending, a stack of the
+    // threads parked in await, SENT or CANCELLED. The receiver and tryCancel race
+    // for the same CAS out of the pending states, so exactly one of them wins
+    private static final Object SENT = new Object(), CANCELLED = new Object();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MessageQueue.OperationStatus, Object> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(MessageQueue.OperationStatus.class, Object.class, "state");
+
+    private static final class Waiter {
+        volatile Thread thread;     // null once the thread gave up waiting
+        Waiter next;
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private class OperationStatus implements SendStatus {
+
+        volatile Object state;      // not private: STATE is created by MessageQueue
+        private T message;
+        // created by the first onSent call
+        private final AtomicReference<CompletableFuture<Void>> sent = new AtomicReference<>();
+
+        public OperationStatus(T message) {
+            this.message = message;
+        }
+
+        @Override
+        public boolean isSent() {
+            return state == SENT;
+        }
+
+        // the receiver's side: false if the send was cancelled first
+        boolean claim() {
+            Object s;
+            do {
+                if ((s = state) == CANCELLED)
+                    return false;
+            } while (!STATE.compareAndSet(this, s, SENT));
+            unparkAll(s);
+            return true;
+        }
+
+        // O(1): the node stays in pendingMessages until a receiver reaches and skips it
+        @Override
+        public boolean tryCancel() {
+            Object s;
+            do {
+                if ((s = state) == SENT || s == CANCELLED)
+                    return false;
+            } while (!STATE.compareAndSet(this, s, CANCELLED));
+            message = null;
+            unparkAll(s);
+            CompletableFuture<Void> future = sent.get();
+            if (future != null)
+                future.cancel(false);
+            return true;
+        }
+
+        private void unparkAll(Object waiters) {
+            for (Waiter w = waiters instanceof Waiter ? (Waiter) waiters : null; w != null; w = w.next) {
+                Thread thread = w.thread;
+                if (thread != null)
+                    LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public CompletableFuture<Void> onSent() {
+            CompletableFuture<Void> future = sent.get();
+            if (future == null && !sent.compareAndSet(null, future = new CompletableFuture<>()))
+                future = sent.get();
+            // the receiver (or tryCancel) may have finished before it could see the future
+            if (isSent())
+                future.complete(null);
+            else if (state == CANCELLED)
+                future.cancel(false);
+            return future;
+        }
+
+        void fireSent() {
+            CompletableFuture<Void> future = sent.get();
+            if (future != null)
+                future.complete(null);
+        }
 
         @Override
         public boolean await(int timeout) throws InterruptedException {
             //verificar se a mensagem já foi recebida
-            if (this.completed) return true;
+            if (isSent()) return true;
             // the event is not signalled; if a null time out was specified, return failure.
-            if (timeout == 0)
+            // A cancelled send is never received.
+            if (timeout == 0 || state == CANCELLED)
                 return false;
 
             // process timeout
             boolean timed = timeout > 0;
-            long nanosTimeout = timed ? TimeUnit.NANOSECONDS.toNanos(timeout) : 0L;
+            long deadline = timed ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : Long.MAX_VALUE;
 
-            monitor.lock();
+            if (waitStrategy != WaitStrategy.BLOCKING
+                    && waitStrategy.await(() -> state == SENT || state == CANCELLED, deadline))
+                return isSent();
+
+            Waiter node = null;
             try {
-                ++this.waiters; //declarar propria thread como uma que espera
-                try{
-                    do {
-                        if (this.completed) //verificar se é mesmo preciso bloquear
+                do {
+                    Object s = state;
+                    if (s == SENT) //verificar se é mesmo preciso bloquear
+                        return true;
+                    if (s == CANCELLED)
+                        return false;
+                    if (node == null) {
+                        // declarar propria thread como uma que espera
+                        Waiter w = new Waiter(Thread.currentThread());
+                        w.next = (Waiter) s;
+                        if (STATE.compareAndSet(this, s, w))
+                            node = w;
+                        continue;
+                    }
+                    if (timed) {
+                        long nanosTimeout = deadline - System.nanoTime();
+                        if (nanosTimeout <= 0)
+                            // the specified time out elapsed, so return failure
+                            return false;
+                        LockSupport.parkNanos(this, nanosTimeout);
+                    } else
+                        LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        if (isSent()) {
+                            Thread.currentThread().interrupt();
                             return true;
-                        // check for timeout
-                        if (timed) {
-                            if (nanosTimeout <= 0)
-                                // the specified time out elapsed, so return failure
-                                return false;
-                            nanosTimeout = this.cond.awaitNanos(nanosTimeout);
-                        } else
-                            this.cond.await();
-                    } while (true);
-                }finally {
-                    this.waiters--;
-                }
+                        }
+                        throw new InterruptedException();
+                    }
+                } while (true);
             } finally {
-                monitor.unlock();
+                if (node != null) {
+                    node.thread = null;
+                    // unlinked if still on top; otherwise it stays, ignored, until the completion
+                    STATE.compareAndSet(this, node, node.next);
+                }
             }
         }
     }
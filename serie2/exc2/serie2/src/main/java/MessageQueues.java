@@ -0,0 +1,47 @@
+/***
+ *  Factory of MessageQueues specialized for the number of threads that send and
+ *  receive. All of them have the MessageQueue and SendStatus semantics; the
+ *  single producer or single consumer ones replace CAS loops by ordered stores
+ *  on the side that has one thread only.
+ *
+ *  Using a specialized queue from more threads than it was created for is not
+ *  detected and corrupts it. The single consumer queues reject receiveAsync and
+ *  receiveAny, whose receives are completed by the sending threads.
+ ***/
+
+public final class MessageQueues {
+
+    private MessageQueues() { }
+
+    public static <T> MessageQueue<T> create(boolean singleProducer, boolean singleConsumer) {
+        return create(singleProducer, singleConsumer, WaitStrategy.BLOCKING);
+    }
+
+    public static <T> MessageQueue<T> create(boolean singleProducer, boolean singleConsumer,
+                                             WaitStrategy waitStrategy) {
+        return new MessageQueue<>(singleProducer, singleConsumer, MessageQueue.UNBOUNDED, waitStrategy);
+    }
+
+    // at most capacity messages pending (see MessageQueue.trySend)
+    public static <T> MessageQueue<T> create(boolean singleProducer, boolean singleConsumer, int capacity,
+                                             WaitStrategy waitStrategy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity");
+        return new MessageQueue<>(singleProducer, singleConsumer, capacity, waitStrategy);
+    }
+
+    // any number of senders and receivers: the plain MessageQueue
+    public static <T> MessageQueue<T> multiProducerMultiConsumer() {
+        return new MessageQueue<>();
+    }
+
+    // any number of senders, one receiver
+    public static <T> MessageQueue<T> multiProducerSingleConsumer() {
+        return create(false, true);
+    }
+
+    // one sender, one receiver
+    public static <T> MessageQueue<T> singleProducerSingleConsumer() {
+        return create(true, true);
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Collection;
+import java.util.Iterator;
+
+/***
+ *  LinkedQueue for any number of producers and a single consumer.
+ *
+ *  A producer swaps itself in as the tail with one getAndSet and then links the
+ *  previous tail to its node, so put never retries. Until that link is stored
+ *  the consumer sees the queue end at the previous node, which only delays the
+ *  message. Being alone, the consumer advances head with an ordered store
+ *  instead of a CAS.
+ ***/
+
+public class MpscLinkedQueue<E> extends LinkedQueue<E> {
+
+    @Override
+    public void put(E item){
+        Node<E> node = new Node<>(item,null);
+        // volatile store: the caller reads its waiters counter right after it
+        tail.getAndSet(node).next.set(node);
+    }
+
+    @Override
+    public void putAll(Collection<? extends E> items){
+        Iterator<? extends E> it = items.iterator();
+        if(!it.hasNext()) return;
+        Node<E> first = new Node<>(it.next(),null), last = first;
+        while(it.hasNext()){
+            Node<E> node = new Node<>(it.next(),null);
+            last.next.lazySet(node);
+            last = node;
+        }
+        tail.getAndSet(last).next.set(first);
+    }
+
+    // only called by the consumer thread
+    @Override
+    public E tryRemove(){
+        Node<E> observedHead = head.get();
+        Node<E> observedHeadNext = observedHead.next.get();
+        if(observedHeadNext == null) return null;
+        head.lazySet(observedHeadNext);
+        return observedHeadNext.item;
+    }
+
+    // only called by the consumer thread
+    @Override
+    public int tryRemoveAll(Collection<? super E> to, int max){
+        Node<E> node = head.get(), next;
+        int count = 0;
+        while(count < max && (next = node.next.get()) != null){
+            to.add(next.item);
+            node = next;
+            count++;
+        }
+        if(count > 0)
+            head.lazySet(node);
+        return count;
+    }
+}
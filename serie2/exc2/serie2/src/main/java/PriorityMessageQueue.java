@@ -0,0 +1,102 @@
+import java.util.Collection;
+import java.util.Optional;
+
+/***
+ *  MessageQueue that delivers the pending messages of higher priority first
+ *  (priority 0 is the highest), in FIFO order within a priority.
+ *
+ *  Every priority is a MessageQueue of its own, so sends are lock-free and
+ *  return the usual SendStatus (await, onSent, tryCancel). A receiver takes
+ *  from the highest priority that has a message; when none has, it waits with
+ *  MessageQueue.receiveAny on all of them, and the first send of any priority
+ *  hands its message directly to it.
+ *
+ *  Priorities are strict: while there is backlog in a priority, the lower ones
+ *  are not served. There is no receiveAsync: a future registered on every
+ *  priority would take the first message sent, whatever its priority.
+ ***/
+
+public class PriorityMessageQueue<T> {
+
+    private final MessageQueue<T>[] levels;
+
+    public PriorityMessageQueue(int priorities) {
+        levels = createLevels(priorities, MessageQueue.UNBOUNDED);
+    }
+
+    // at most capacity messages pending in each priority: see trySend
+    public PriorityMessageQueue(int priorities, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity");
+        levels = createLevels(priorities, capacity);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> MessageQueue<T>[] createLevels(int priorities, int capacity) {
+        if (priorities <= 0)
+            throw new IllegalArgumentException("priorities");
+        MessageQueue<T>[] levels = new MessageQueue[priorities];
+        for (int i = 0; i < priorities; i++)
+            levels[i] = new MessageQueue<>(false, false, capacity, WaitStrategy.BLOCKING);
+        return levels;
+    }
+
+    public int priorities() {
+        return levels.length;
+    }
+
+    // on a bounded queue, throws IllegalStateException when the priority is full
+    public SendStatus send(T message, int priority) {
+        return level(priority).send(message);
+    }
+
+    // at the lowest priority
+    public SendStatus send(T message) {
+        return levels[levels.length - 1].send(message);
+    }
+
+    // returns empty, without waiting, when the priority is full
+    public Optional<SendStatus> trySend(T message, int priority) {
+        return level(priority).trySend(message);
+    }
+
+    private MessageQueue<T> level(int priority) {
+        if (priority < 0 || priority >= levels.length)
+            throw new IllegalArgumentException("priority");
+        return levels[priority];
+    }
+
+    public Optional<T> receive(long timeout) throws InterruptedException {
+        // one lock-free pass, from the highest priority, before registering anywhere
+        for (MessageQueue<T> level : levels) {
+            Optional<T> message = level.receive(0);
+            if (message.isPresent())
+                return message;
+        }
+        if (timeout == 0)
+            return Optional.empty();
+        return MessageQueue.receiveAny(timeout, levels);
+    }
+
+    // receives up to max messages, the higher priorities first; waits, at most
+    // timeout, only while there is none. Returns the number of messages added to "to"
+    public int drainTo(Collection<? super T> to, int max, long timeout) throws InterruptedException {
+        if (max < 0)
+            throw new IllegalArgumentException("max");
+        int drained = 0;
+        for (int i = 0; i < levels.length && drained < max; i++)
+            drained += levels[i].drainTo(to, max - drained, 0);
+        if (drained > 0 || max == 0 || timeout == 0)
+            return drained;
+
+        Optional<T> first = MessageQueue.receiveAny(timeout, levels);
+        if (!first.isPresent())
+            return 0;
+        to.add(first.get());
+        drained = 1;
+        // what was sent meanwhile, without waiting again
+        for (int i = 0; i < levels.length && drained < max; i++)
+            drained += levels[i].drainTo(to, max - drained, 0);
+        return drained;
+    }
+}
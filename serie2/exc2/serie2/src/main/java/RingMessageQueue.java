@@ -0,0 +1,288 @@
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/***
+ *  Bounded MessageQueue over a preallocated ring of power of two size.
+ *
+ *  Every slot carries a sequence number: a producer may write slot i of lap n
+ *  when its sequence is n * capacity + i, and a consumer may read it when it is
+ *  one more. Producers and consumers claim positions with a CAS on their own
+ *  cursor, so trySend/tryReceive allocate nothing and take no lock; the
+ *  blocking receive(timeout) returns an Optional and send(message) a
+ *  SendStatus, one allocation each. The lock is only used to park threads:
+ *  receivers when the ring is empty, senders when it is full and whoever waits
+ *  on a SendStatus.
+ *
+ *  A message in the ring cannot be taken back: SendStatus.tryCancel always
+ *  returns false.
+ ***/
+
+public class RingMessageQueue<T> {
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();    // next position to send
+    private final AtomicLong head = new AtomicLong();    // next position to receive
+
+    private final Lock monitor = new ReentrantLock();
+    private final Condition notEmpty = monitor.newCondition();
+    private final Condition notFull = monitor.newCondition();
+    private final Condition received = monitor.newCondition();
+    private volatile int receivers, senders, statusWaiters;
+
+    // tickets with an onSent future not completed yet
+    private final ConcurrentLinkedQueue<Ticket> watchedTickets = new ConcurrentLinkedQueue<>();
+
+    // capacity is rounded up to a power of two, and to 2: with a single slot the
+    // sequence of a full slot would be the one a producer of the next lap waits for
+    public RingMessageQueue(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity");
+        int size = Math.max(2, Integer.highestOneBit(capacity));
+        if (size < capacity) size <<= 1;
+        buffer = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    //-------------------------------
+    // allocation free path
+
+    // returns false, without waiting, when the ring is full
+    public boolean trySend(T message) {
+        return offer(message) >= 0;
+    }
+
+    // the position taken by the message, or -1 if the ring is full
+    private long offer(T message) {
+        if (message == null)
+            throw new NullPointerException();
+        long pos;
+        do {
+            pos = tail.get();
+            int index = (int) pos & mask;
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = message;
+                    // publishes the message; a volatile store, so that the read of receivers
+                    // below cannot move before it
+                    sequences.set(index, pos + 1);
+                    if (receivers > 0)
+                        signal(notEmpty);
+                    return pos;
+                }
+            } else if (dif < 0) {
+                return -1;      // the slot still holds the message of the previous lap
+            }
+        } while (true);
+    }
+
+    // returns null, without waiting, when the ring is empty
+    @SuppressWarnings("unchecked")
+    public T tryReceive() {
+        long pos;
+        do {
+            pos = head.get();
+            int index = (int) pos & mask;
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    T message = (T) buffer[index];
+                    buffer[index] = null;
+                    sequences.set(index, pos + buffer.length);   // frees the slot for the next lap
+                    if (senders > 0)
+                        signal(notFull);
+                    if (statusWaiters > 0)
+                        signalAll(received);
+                    if (!watchedTickets.isEmpty())
+                        fireTickets();
+                    return message;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+        } while (true);
+    }
+
+    //-------------------------------
+    // blocking operations
+
+    public Optional<T> receive(long timeout) throws InterruptedException {
+        T message = tryReceive();
+        if (message != null || timeout == 0)
+            return Optional.ofNullable(message);
+
+        boolean timed = timeout > 0;
+        long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+        monitor.lock();
+        try {
+            receivers++;
+            try {
+                // declared as a receiver before looking again: a send either sees us or we see it
+                while ((message = tryReceive()) == null) {
+                    if (timed && nanosTimeout <= 0)
+                        return Optional.empty();
+                    if (timed)
+                        nanosTimeout = notEmpty.awaitNanos(nanosTimeout);
+                    else
+                        notEmpty.await();
+                }
+            } finally {
+                receivers--;
+            }
+        } finally {
+            monitor.unlock();
+        }
+        return Optional.of(message);
+    }
+
+    // waits, at most timeout, for room in the ring; false if there was none
+    public boolean send(T message, long timeout) throws InterruptedException {
+        return put(message, timeout) >= 0;
+    }
+
+    // as send(message, timeout) but returns a status that tells when the message was received
+    public SendStatus send(T message) throws InterruptedException {
+        return new Ticket(put(message, -1));
+    }
+
+    private long put(T message, long timeout) throws InterruptedException {
+        long pos = offer(message);
+        if (pos >= 0 || timeout == 0)
+            return pos;
+
+        boolean timed = timeout > 0;
+        long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+        monitor.lock();
+        try {
+            senders++;
+            try {
+                while ((pos = offer(message)) < 0) {
+                    if (timed && nanosTimeout <= 0)
+                        return -1;
+                    if (timed)
+                        nanosTimeout = notFull.awaitNanos(nanosTimeout);
+                    else
+                        notFull.await();
+                }
+                return pos;
+            } finally {
+                senders--;
+            }
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private void fireTickets() {
+        for (Iterator<Ticket> it = watchedTickets.iterator(); it.hasNext(); ) {
+            Ticket ticket = it.next();
+            if (ticket.isSent()) {
+                it.remove();
+                ticket.sent.complete(null);
+            }
+        }
+    }
+
+    private void signal(Condition condition) {
+        monitor.lock();
+        try {
+            condition.signal();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private void signalAll(Condition condition) {
+        monitor.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    //-------------------------------
+
+    // the message at position pos was received once its slot was freed for the next
+    // lap; the receive cursor alone moves before the receiver has read the slot
+    private class Ticket implements SendStatus {
+        private final long pos;
+        private volatile CompletableFuture<Void> sent;
+
+        Ticket(long pos) {
+            this.pos = pos;
+        }
+
+        @Override
+        public boolean isSent() {
+            // the sequence of a slot only grows, to pos + capacity when it is freed
+            return sequences.get((int) pos & mask) >= pos + buffer.length;
+        }
+
+        // a published slot is only ever emptied by a receiver
+        @Override
+        public boolean tryCancel() {
+            return false;
+        }
+
+        @Override
+        public synchronized CompletableFuture<Void> onSent() {
+            if (sent == null) {
+                sent = new CompletableFuture<>();
+                watchedTickets.add(this);
+                // the receive may have happened before we were watched
+                if (isSent() && watchedTickets.remove(this))
+                    sent.complete(null);
+            }
+            return sent;
+        }
+
+        @Override
+        public boolean await(int timeout) throws InterruptedException {
+            if (isSent())
+                return true;
+            if (timeout == 0)
+                return false;
+
+            boolean timed = timeout > 0;
+            long nanosTimeout = timed ? TimeUnit.MILLISECONDS.toNanos(timeout) : 0L;
+            monitor.lock();
+            try {
+                statusWaiters++;
+                try {
+                    while (!isSent()) {
+                        if (timed && nanosTimeout <= 0)
+                            return false;
+                        if (timed)
+                            nanosTimeout = received.awaitNanos(nanosTimeout);
+                        else
+                            received.await();
+                    }
+                    return true;
+                } finally {
+                    statusWaiters--;
+                }
+            } finally {
+                monitor.unlock();
+            }
+        }
+    }
+}
@@ -1,6 +1,12 @@
+import java.util.concurrent.CompletableFuture;
 
 public interface SendStatus {
 
     boolean isSent();
+    // takes the message back if no receiver has it yet; never blocks
+    boolean tryCancel();
     boolean await(int timeout)throws InterruptedException;
+
+    // completed when the message is received; continuations run in the receiving thread
+    CompletableFuture<Void> onSent();
 }
@@ -0,0 +1,38 @@
+import java.util.Collection;
+import java.util.Iterator;
+
+/***
+ *  LinkedQueue for a single producer and a single consumer.
+ *
+ *  As MpscLinkedQueue, but the only producer owns the tail, so it moves it with
+ *  an ordered store instead of a getAndSet.
+ ***/
+
+public class SpscLinkedQueue<E> extends MpscLinkedQueue<E> {
+
+    // only called by the producer thread
+    @Override
+    public void put(E item){
+        Node<E> node = new Node<>(item,null);
+        Node<E> last = tail.get();
+        tail.lazySet(node);
+        // volatile store: the caller reads its waiters counter right after it
+        last.next.set(node);
+    }
+
+    // only called by the producer thread
+    @Override
+    public void putAll(Collection<? extends E> items){
+        Iterator<? extends E> it = items.iterator();
+        if(!it.hasNext()) return;
+        Node<E> first = new Node<>(it.next(),null), last = first;
+        while(it.hasNext()){
+            Node<E> node = new Node<>(it.next(),null);
+            last.next.lazySet(node);
+            last = node;
+        }
+        Node<E> previous = tail.get();
+        tail.lazySet(last);
+        previous.next.set(first);
+    }
+}
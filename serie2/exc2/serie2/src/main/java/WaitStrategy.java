@@ -0,0 +1,89 @@
+import java.util.function.BooleanSupplier;
+
+/***
+ *  What MessageQueue.receive and SendStatus.await do between finding that they
+ *  must wait and blocking on the queue's condition.
+ *
+ *  await polls ready() for as long as the strategy wants and returns true as
+ *  soon as it holds. When it returns false the caller blocks for the rest of
+ *  its timeout (if any is left). A thread that is spinning is not registered
+ *  as a waiter, so the sender does not take the lock to wake it. An interrupt
+ *  also ends the spinning: the blocking part is what throws InterruptedException.
+ ***/
+
+public interface WaitStrategy {
+
+    // deadline is a System.nanoTime() value, Long.MAX_VALUE when there is no timeout
+    boolean await(BooleanSupplier ready, long deadline);
+
+    static boolean expired(long deadline) {
+        return deadline != Long.MAX_VALUE && System.nanoTime() - deadline >= 0;
+    }
+
+    // the spinning must give up: timed out or interrupted
+    static boolean mustStop(long deadline) {
+        return expired(deadline) || Thread.currentThread().isInterrupted();
+    }
+
+    // goes straight to the condition: the lowest CPU use and the highest latency
+    WaitStrategy BLOCKING = (ready, deadline) -> false;
+
+    static WaitStrategy blocking() {
+        return BLOCKING;
+    }
+
+    // never blocks: the lowest latency, one core per waiting thread
+    static WaitStrategy busySpin() {
+        return (ready, deadline) -> {
+            while (!ready.getAsBoolean()) {
+                if (mustStop(deadline))
+                    return false;
+            }
+            return true;
+        };
+    }
+
+    // spins for a while, then gives the processor away between polls; never blocks
+    static WaitStrategy spinThenYield(int spins) {
+        return (ready, deadline) -> {
+            for (int i = 0; !ready.getAsBoolean(); i++) {
+                if (mustStop(deadline))
+                    return false;
+                if (i >= spins)
+                    Thread.yield();
+            }
+            return true;
+        };
+    }
+
+    // spins up to a budget that adapts to how long the waits turn out to be, then blocks
+    static WaitStrategy spinThenPark() {
+        return new AdaptiveSpin();
+    }
+
+    class AdaptiveSpin implements WaitStrategy {
+        static final int MIN_SPINS = 16, MAX_SPINS = 1 << 14;
+
+        // shared by all the waiters of the queue; racy updates only blur the estimate
+        private volatile int spins = 1 << 8;
+
+        @Override
+        public boolean await(BooleanSupplier ready, long deadline) {
+            int budget = spins;
+            for (int i = 0; i < budget; i++) {
+                if (ready.getAsBoolean()) {
+                    // it paid off: a larger budget catches the slower ones too
+                    if (budget < MAX_SPINS) spins = budget << 1;
+                    return true;
+                }
+                if (mustStop(deadline))
+                    return false;
+                if ((i & 63) == 63)
+                    Thread.yield();     // lets a sender on the same core run
+            }
+            // waited for nothing: spin less next time
+            if (budget > MIN_SPINS) spins = budget >> 1;
+            return false;
+        }
+    }
+}
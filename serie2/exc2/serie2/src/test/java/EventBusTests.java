@@ -0,0 +1,184 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventBusTests {
+
+    // a subscriber of String events whose handler blocks on the first event until released
+    private static class SlowSubscriber extends Thread {
+        final EventBus bus;
+        final List<String> handled = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch handling = new CountDownLatch(1), release = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<>();
+
+        SlowSubscriber(EventBus bus) {
+            this.bus = bus;
+        }
+
+        @Override
+        public void run() {
+            try {
+                result.set(bus.subscribeEvent(String.class, event -> {
+                    handled.add(event);
+                    handling.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            } catch (Exception e) {
+                result.set(e);
+            }
+        }
+
+        // publishes until the subscriber is in its handler
+        void startHandling(String event) throws InterruptedException {
+            while (bus.publishEvent(event) == 0)
+                Thread.sleep(10);
+            handling.await();
+        }
+    }
+
+    @Test
+    public void events_are_delivered_in_order_to_every_subscriber_of_their_class() throws Exception {
+        EventBus bus = new EventBus(100);
+        List<String> strings = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> integers = Collections.synchronizedList(new ArrayList<>());
+        Thread s1 = new Thread(() -> {
+            try {
+                bus.subscribeEvent(String.class, strings::add);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        Thread s2 = new Thread(() -> {
+            try {
+                bus.subscribeEvent(Integer.class, integers::add);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        s1.start();
+        s2.start();
+        while (bus.publishEvent("first") == 0)
+            Thread.sleep(10);
+        while (bus.publishEvent(0) == 0)
+            Thread.sleep(10);
+        assertEquals(1, bus.publishEvent("second"));
+        assertEquals(1, bus.publishEvent(1));
+        assertEquals(0, bus.publishEvent(1L));     // nobody subscribes Long
+
+        bus.shutdown();
+        s1.join();
+        s2.join();
+        assertEquals("second", strings.get(strings.size() - 1));
+        assertEquals(1, (int) integers.get(integers.size() - 1));
+    }
+
+    @Test
+    public void drop_newest_does_not_deliver_to_a_full_mailbox() throws Exception {
+        EventBus bus = new EventBus(1, EventBus.SlowConsumerPolicy.DROP_NEWEST);
+        SlowSubscriber sub = new SlowSubscriber(bus);
+        sub.start();
+        sub.startHandling("a");
+        assertEquals(1, bus.publishEvent("b"));
+        assertEquals(0, bus.publishEvent("c"));
+        assertEquals(1, bus.getDropped());
+
+        sub.release.countDown();
+        bus.shutdown();
+        sub.join();
+        assertEquals(true, sub.result.get());
+        assertEquals(Arrays.asList("a", "b"), sub.handled.subList(sub.handled.size() - 2, sub.handled.size()));
+        assertTrue(!sub.handled.contains("c"));
+    }
+
+    @Test
+    public void drop_oldest_makes_room_for_the_new_event() throws Exception {
+        EventBus bus = new EventBus(1, EventBus.SlowConsumerPolicy.DROP_OLDEST);
+        SlowSubscriber sub = new SlowSubscriber(bus);
+        sub.start();
+        sub.startHandling("a");
+        assertEquals(1, bus.publishEvent("b"));
+        assertEquals(1, bus.publishEvent("c"));
+        assertEquals(1, bus.getDropped());
+
+        sub.release.countDown();
+        bus.shutdown();
+        sub.join();
+        assertEquals(Arrays.asList("a", "c"), sub.handled.subList(sub.handled.size() - 2, sub.handled.size()));
+        assertTrue(!sub.handled.contains("b"));
+    }
+
+    @Test
+    public void disconnect_removes_the_slow_subscriber() throws Exception {
+        EventBus bus = new EventBus(1, EventBus.SlowConsumerPolicy.DISCONNECT);
+        SlowSubscriber sub = new SlowSubscriber(bus);
+        sub.start();
+        sub.startHandling("a");
+        assertEquals(1, bus.publishEvent("b"));
+        assertEquals(0, bus.publishEvent("c"));
+        assertEquals(0, bus.publishEvent("d"));    // no longer subscribed
+
+        sub.release.countDown();
+        sub.join();
+        assertEquals(false, sub.result.get());
+        assertEquals("b", sub.handled.get(sub.handled.size() - 1));
+        bus.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void publish_after_shutdown_throws() throws InterruptedException {
+        EventBus bus = new EventBus(1);
+        bus.shutdown();
+        bus.publishEvent("a");
+    }
+
+    @Test
+    public void every_event_delivered_before_shutdown_is_handled() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            EventBus bus = new EventBus(1000);
+            AtomicInteger handled = new AtomicInteger(), delivered = new AtomicInteger();
+            Thread sub = new Thread(() -> {
+                try {
+                    bus.subscribeEvent(Integer.class, event -> handled.incrementAndGet());
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            sub.start();
+            while (bus.publishEvent(0) == 0)
+                Thread.sleep(1);
+            delivered.incrementAndGet();
+
+            Thread[] publishers = new Thread[2];
+            for (int i = 0; i < publishers.length; i++) {
+                publishers[i] = new Thread(() -> {
+                    try {
+                        while (true)
+                            delivered.addAndGet(bus.publishEvent(1));
+                    } catch (IllegalStateException e) {
+                        // shut down
+                    }
+                });
+                publishers[i].start();
+            }
+            Thread.sleep(round % 3);
+            bus.shutdown();
+            for (Thread publisher : publishers)
+                publisher.join();
+            sub.join();
+            assertEquals("round " + round, delivered.get(), handled.get());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JournaledMessageQueueTests {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static JournaledMessageQueue<String> open(Path directory) throws IOException {
+        return new JournaledMessageQueue<>(directory, JournaledMessageQueue.utf8(), SEGMENT_SIZE, 10);
+    }
+
+    // receives, without acknowledging, whatever is queued
+    private static List<String> receiveAll(JournaledMessageQueue<String> journal) throws InterruptedException {
+        List<String> messages = new ArrayList<>();
+        Optional<JournaledMessageQueue.Delivery<String>> delivery;
+        while ((delivery = journal.receive(0)).isPresent())
+            messages.add(delivery.get().message());
+        return messages;
+    }
+
+    @Test
+    public void unacknowledged_messages_are_delivered_again_from_the_checkpoint() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (JournaledMessageQueue<String> journal = open(directory)) {
+            journal.send("a");
+            journal.send("b");
+            journal.send("c");
+            journal.receive(0).get().ack();
+            journal.receive(0).get();   // received, never acknowledged
+            assertTrue(journal.sync(5000));
+        }
+        try (JournaledMessageQueue<String> journal = open(directory)) {
+            List<String> expected = new ArrayList<>();
+            expected.add("b");
+            expected.add("c");
+            assertEquals(expected, receiveAll(journal));
+        }
+    }
+
+    @Test
+    public void a_torn_last_record_ends_the_journal() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        try (JournaledMessageQueue<String> journal = open(directory)) {
+            journal.send("a");
+            journal.send("b");
+        }
+        // the payload of "b" (at 1 + 8, after "a") no longer matches its crc
+        try (FileChannel segment = FileChannel.open(directory.resolve(String.format("%020d.segment", 0)),
+                StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.wrap(new byte[] { 'x' }), 9 + 8);
+        }
+        try (JournaledMessageQueue<String> journal = open(directory)) {
+            List<String> expected = new ArrayList<>();
+            expected.add("a");
+            assertEquals(expected, receiveAll(journal));
+            journal.send("c");  // written over the torn record
+        }
+        try (JournaledMessageQueue<String> journal = open(directory)) {
+            List<String> expected = new ArrayList<>();
+            expected.add("a");
+            expected.add("c");
+            assertEquals(expected, receiveAll(journal));
+        }
+    }
+}
@@ -0,0 +1,455 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageQueueTests {
+
+    @Test
+    public void receiveAsync_racing_send_is_always_completed() throws Exception {
+        int rounds = 200000;
+        CyclicBarrier start = new CyclicBarrier(2);
+        AtomicReference<MessageQueue<Integer>> queue = new AtomicReference<>();
+        Thread sender = new Thread(() -> {
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    start.await();
+                    queue.get().send(i);
+                    start.await();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+        int stranded = 0;
+        for (int i = 0; i < rounds; i++) {
+            queue.set(new MessageQueue<>());
+            start.await();
+            CompletableFuture<Integer> receive = queue.get().receiveAsync();
+            start.await();
+            // the send returned: its message went to the future or is still queued
+            if (!receive.isDone() && queue.get().receive(0).isPresent())
+                stranded++;
+        }
+        sender.join();
+        assertEquals(0, stranded);
+    }
+
+    @Test
+    public void sendAll_completes_waiting_async_receives() throws Exception {
+        MessageQueue<Integer> queue = new MessageQueue<>();
+        CompletableFuture<Integer> first = queue.receiveAsync(), second = queue.receiveAsync();
+        List<SendStatus> statuses = queue.sendAll(Arrays.asList(1, 2, 3));
+
+        assertEquals(1, (int) first.get(1, TimeUnit.SECONDS));
+        assertEquals(2, (int) second.get(1, TimeUnit.SECONDS));
+        assertTrue(statuses.get(0).isSent() && statuses.get(1).isSent());
+        assertFalse(statuses.get(2).isSent());
+        assertEquals(3, (int) queue.receive(0).get());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void single_consumer_queue_rejects_receiveAsync() {
+        MessageQueues.<Integer>multiProducerSingleConsumer().receiveAsync();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void single_consumer_queue_rejects_receiveAny() throws InterruptedException {
+        MessageQueue.receiveAny(0, new MessageQueue<Integer>(), MessageQueues.<Integer>singleProducerSingleConsumer());
+    }
+
+    @Test
+    public void cancelled_message_keeps_its_place_until_a_receiver_unlinks_it() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(1);
+        for (int i = 0; i < 1000; i++) {
+            Optional<SendStatus> status = queue.trySend(i);
+            assertTrue(status.isPresent());
+            assertTrue(status.get().tryCancel());
+            assertFalse(queue.trySend(-1).isPresent());
+            assertFalse(queue.receive(0).isPresent());  // skips and unlinks the cancelled one
+        }
+        assertTrue(queue.trySend(1000).isPresent());
+        assertEquals(Optional.of(1000), queue.receive(0));
+    }
+
+    //-------------------------------
+    // MessageQueues
+
+    @Test
+    public void mpsc_queue_keeps_the_order_of_every_producer() throws Exception {
+        int producers = 3, n = 50000;
+        MessageQueue<int[]> queue = MessageQueues.multiProducerSingleConsumer();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < n; i++)
+                    queue.send(new int[] { producer, i });
+            });
+            threads[p].start();
+        }
+        int[] next = new int[producers];
+        List<int[]> batch = new ArrayList<>();
+        for (int received = 0; received < producers * n; received += batch.size()) {
+            batch.clear();
+            queue.drainTo(batch, 64, 5000);
+            for (int[] message : batch)
+                assertEquals(next[message[0]]++, message[1]);
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertFalse(queue.receive(0).isPresent());
+    }
+
+    @Test
+    public void spsc_queue_keeps_the_order() throws Exception {
+        int n = 100000;
+        MessageQueue<Integer> queue = MessageQueues.singleProducerSingleConsumer();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < n; i++)
+                queue.send(i);
+        });
+        producer.start();
+        for (int i = 0; i < n; i++)
+            assertEquals(Optional.of(i), queue.receive(5000));
+        producer.join();
+        assertFalse(queue.receive(0).isPresent());
+    }
+
+    //-------------------------------
+    // bounded queue
+
+    @Test
+    public void trySend_on_a_full_queue_is_empty() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(2);
+        assertTrue(queue.trySend(1).isPresent());
+        assertTrue(queue.trySend(2).isPresent());
+        assertFalse(queue.trySend(3).isPresent());
+        queue.receive(0);
+        assertTrue(queue.trySend(3).isPresent());
+    }
+
+    @Test
+    public void send_on_a_full_queue_times_out() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(1);
+        queue.send(1);
+        long start = System.nanoTime();
+        assertFalse(queue.send(2, 100).isPresent());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(Optional.of(1), queue.receive(0));
+        assertFalse(queue.receive(0).isPresent());
+    }
+
+    @Test
+    public void blocked_send_is_woken_by_a_receive() throws Exception {
+        MessageQueue<Integer> queue = new MessageQueue<>(1);
+        queue.send(1);
+        AtomicReference<Optional<SendStatus>> result = new AtomicReference<>();
+        Thread sender = new Thread(() -> {
+            try {
+                result.set(queue.send(2, 5000));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        sender.start();
+        Thread.sleep(100);
+        assertEquals(Optional.of(1), queue.receive(0));
+        sender.join();
+        assertTrue(result.get().isPresent());
+        assertEquals(Optional.of(2), queue.receive(0));
+    }
+
+    //-------------------------------
+    // tryCancel
+
+    @Test
+    public void tryCancel_racing_receive_loses_or_wins_each_message_once() throws Exception {
+        int n = 100000;
+        MessageQueue<Integer> queue = new MessageQueue<>();
+        List<SendStatus> statuses = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            statuses.add(queue.send(i));
+        AtomicInteger cancelled = new AtomicInteger();
+        Thread canceller = new Thread(() -> {
+            for (SendStatus status : statuses)
+                if (status.tryCancel())
+                    cancelled.incrementAndGet();
+        });
+        canceller.start();
+        int received = 0;
+        while (canceller.isAlive())
+            if (queue.receive(0).isPresent())
+                received++;
+        canceller.join();
+        while (queue.receive(0).isPresent())
+            received++;
+
+        assertEquals(n, received + cancelled.get());
+        int sent = 0;
+        for (SendStatus status : statuses)
+            if (status.isSent())
+                sent++;
+        assertEquals(received, sent);
+    }
+
+    //-------------------------------
+    // awaiting a send
+
+    // waits until every thread is parked, in await or elsewhere
+    private static void awaitParked(Thread... threads) throws InterruptedException {
+        for (Thread t : threads) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (t.getState() != Thread.State.WAITING && t.getState() != Thread.State.TIMED_WAITING) {
+                assertTrue(t.getName() + " did not park", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void one_receive_releases_every_awaiter() throws Exception {
+        MessageQueue<Integer> queue = new MessageQueue<>();
+        SendStatus status = queue.send(1);
+        Thread[] awaiters = new Thread[4];
+        AtomicInteger released = new AtomicInteger();
+        for (int i = 0; i < awaiters.length; i++) {
+            awaiters[i] = new Thread(() -> {
+                try {
+                    if (status.await(-1))
+                        released.incrementAndGet();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            awaiters[i].start();
+        }
+        awaitParked(awaiters);
+
+        assertEquals(Optional.of(1), queue.receive(0));
+        for (Thread awaiter : awaiters) {
+            awaiter.join(5000);
+            assertFalse(awaiter.getName() + " left parked", awaiter.isAlive());
+        }
+        assertEquals(awaiters.length, released.get());
+        assertTrue(status.onSent().isDone());
+    }
+
+    @Test
+    public void awaits_racing_receive_and_tryCancel_agree_with_them() throws Exception {
+        for (int round = 0; round < 2000; round++) {
+            MessageQueue<Integer> queue = new MessageQueue<>();
+            SendStatus status = queue.send(round);
+            Future<Void> sent = status.onSent();
+            int timeout = round % 3;
+            AtomicReference<Boolean> untimed = new AtomicReference<>(), timed = new AtomicReference<>();
+            AtomicReference<Boolean> cancelled = new AtomicReference<>(false);
+            Thread untimedAwaiter = new Thread(() -> {
+                try {
+                    untimed.set(status.await(-1));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            Thread timedAwaiter = new Thread(() -> {
+                try {
+                    timed.set(status.await(timeout));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            Thread canceller = new Thread(() -> cancelled.set(status.tryCancel()));
+            untimedAwaiter.start();
+            timedAwaiter.start();
+            canceller.start();
+            boolean received = queue.receive(0).isPresent();
+            canceller.join();
+            untimedAwaiter.join(5000);
+            timedAwaiter.join(5000);
+
+            String name = "round " + round;
+            // the untimed await only returns when the send is received or cancelled
+            assertFalse(name + ": await left parked", untimedAwaiter.isAlive() || timedAwaiter.isAlive());
+            assertTrue(name + ": received or cancelled once", received != cancelled.get());
+            assertEquals(name, received, untimed.get());
+            assertEquals(name, received, status.isSent());
+            assertTrue(name, received || !timed.get());
+            assertTrue(name, sent.isDone() && sent.isCancelled() == cancelled.get());
+        }
+    }
+
+    @Test
+    public void interrupted_await_leaves_the_send_and_the_other_awaiters_alone() throws Exception {
+        MessageQueue<Integer> queue = new MessageQueue<>();
+        SendStatus status = queue.send(1);
+        AtomicReference<Object> interruptedResult = new AtomicReference<>(), otherResult = new AtomicReference<>();
+        Thread interrupted = new Thread(() -> {
+            try {
+                interruptedResult.set(status.await(-1));
+            } catch (InterruptedException e) {
+                interruptedResult.set(e);
+            }
+        });
+        Thread other = new Thread(() -> {
+            try {
+                otherResult.set(status.await(-1));
+            } catch (InterruptedException e) {
+                otherResult.set(e);
+            }
+        });
+        interrupted.start();
+        other.start();
+        awaitParked(interrupted, other);
+
+        interrupted.interrupt();
+        interrupted.join(5000);
+        assertTrue(interruptedResult.get() instanceof InterruptedException);
+        assertFalse(status.isSent());
+        assertTrue(other.isAlive());
+
+        assertEquals(Optional.of(1), queue.receive(0));
+        other.join(5000);
+        assertFalse(other.isAlive());
+        assertEquals(true, otherResult.get());
+    }
+
+    //-------------------------------
+    // receiveAny
+
+    @Test(expected = IllegalArgumentException.class)
+    public void receiveAny_needs_a_queue() throws InterruptedException {
+        MessageQueue.receiveAny(-1);
+    }
+
+    @Test
+    public void receiveAny_timeout_withdraws_from_every_queue() throws InterruptedException {
+        MessageQueue<Integer> q1 = new MessageQueue<>(), q2 = new MessageQueue<>();
+        assertFalse(MessageQueue.receiveAny(50, q1, q2).isPresent());
+        // no receive is left registered to swallow the sends
+        SendStatus s1 = q1.send(1), s2 = q2.send(2);
+        assertFalse(s1.isSent() || s2.isSent());
+        assertEquals(Optional.of(1), q1.receive(0));
+        assertEquals(Optional.of(2), q2.receive(0));
+    }
+
+    @Test
+    public void receiveAny_gets_the_first_send_and_withdraws_from_the_others() throws Exception {
+        MessageQueue<Integer> q1 = new MessageQueue<>(), q2 = new MessageQueue<>();
+        AtomicReference<Optional<Integer>> result = new AtomicReference<>();
+        Thread receiver = new Thread(() -> {
+            try {
+                result.set(MessageQueue.receiveAny(5000, q1, q2));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        assertTrue(q2.send(7).await(5000));
+        receiver.join();
+        assertEquals(Optional.of(7), result.get());
+
+        SendStatus status = q1.send(8);
+        assertFalse(status.isSent());
+        assertEquals(Optional.of(8), q1.receive(0));
+    }
+
+    @Test
+    public void receiveAny_interrupted_withdraws_from_every_queue() throws Exception {
+        MessageQueue<Integer> q1 = new MessageQueue<>(), q2 = new MessageQueue<>();
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread receiver = new Thread(() -> {
+            try {
+                result.set(MessageQueue.receiveAny(-1, q1, q2));
+            } catch (InterruptedException e) {
+                result.set(e);
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        receiver.interrupt();
+        receiver.join();
+        assertTrue(result.get() instanceof InterruptedException);
+        q1.send(1);
+        q2.send(2);
+        assertEquals(Optional.of(1), q1.receive(0));
+        assertEquals(Optional.of(2), q2.receive(0));
+    }
+
+    //-------------------------------
+    // sendAll and drainTo
+
+    @Test
+    public void drainTo_takes_a_batch_in_order_and_in_parts() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>();
+        List<SendStatus> statuses = queue.sendAll(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+        List<Integer> received = new ArrayList<>();
+
+        assertEquals(4, queue.drainTo(received, 4, 0));
+        assertEquals(Arrays.asList(1, 2, 3, 4), received);
+        assertTrue(statuses.get(3).isSent());
+        assertFalse(statuses.get(4).isSent());
+
+        assertEquals(6, queue.drainTo(received, 100, 0));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), received);
+        for (SendStatus status : statuses)
+            assertTrue(status.isSent());
+        assertEquals(0, queue.drainTo(received, 100, 0));
+        assertEquals(0, queue.drainTo(received, 0, 0));
+    }
+
+    @Test
+    public void drainTo_waits_only_while_the_queue_is_empty() throws Exception {
+        MessageQueue<Integer> queue = new MessageQueue<>();
+        List<Integer> received = new ArrayList<>();
+        Thread receiver = new Thread(() -> {
+            try {
+                queue.drainTo(received, 8, 5000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        queue.sendAll(Arrays.asList(1, 2, 3));
+        receiver.join();
+        // the sends may be seen one by one, but never out of order
+        queue.drainTo(received, 8, 0);
+        assertEquals(Arrays.asList(1, 2, 3), received);
+        assertEquals(0, queue.drainTo(received, 8, 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void drainTo_rejects_a_negative_max() throws InterruptedException {
+        new MessageQueue<Integer>().drainTo(new ArrayList<>(), -1, 0);
+    }
+
+    @Test
+    public void sendAll_that_does_not_fit_sends_nothing() throws InterruptedException {
+        MessageQueue<Integer> queue = new MessageQueue<>(2);
+        queue.send(1);
+        try {
+            queue.sendAll(Arrays.asList(2, 3));
+            assertTrue(false);
+        } catch (IllegalStateException e) {
+            // full
+        }
+        assertTrue(queue.sendAll(Arrays.asList(2)).size() == 1);
+        List<Integer> received = new ArrayList<>();
+        assertEquals(2, queue.drainTo(received, 8, 0));
+        assertEquals(Arrays.asList(1, 2), received);
+    }
+}
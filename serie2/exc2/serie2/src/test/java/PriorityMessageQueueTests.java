@@ -0,0 +1,137 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityMessageQueueTests {
+
+    @Test
+    public void higher_priorities_are_received_first_and_each_in_order() throws InterruptedException {
+        PriorityMessageQueue<String> queue = new PriorityMessageQueue<>(3);
+        queue.send("low 1");
+        queue.send("mid 1", 1);
+        queue.send("high 1", 0);
+        queue.send("mid 2", 1);
+        queue.send("high 2", 0);
+        queue.send("low 2", 2);
+
+        List<String> received = new ArrayList<>();
+        Optional<String> message;
+        while ((message = queue.receive(0)).isPresent())
+            received.add(message.get());
+        assertEquals(Arrays.asList("high 1", "high 2", "mid 1", "mid 2", "low 1", "low 2"), received);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void send_rejects_an_unknown_priority() {
+        new PriorityMessageQueue<String>(2).send("a", 2);
+    }
+
+    @Test
+    public void receive_times_out_and_leaves_no_receive_behind() throws InterruptedException {
+        PriorityMessageQueue<Integer> queue = new PriorityMessageQueue<>(2);
+        assertFalse(queue.receive(0).isPresent());
+        long start = System.nanoTime();
+        assertFalse(queue.receive(50).isPresent());
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+
+        SendStatus status = queue.send(1, 1);
+        assertFalse(status.isSent());
+        assertEquals(Optional.of(1), queue.receive(0));
+    }
+
+    @Test
+    public void waiting_receiver_gets_the_first_send_of_any_priority() throws Exception {
+        PriorityMessageQueue<Integer> queue = new PriorityMessageQueue<>(3);
+        AtomicReference<Optional<Integer>> result = new AtomicReference<>();
+        Thread receiver = new Thread(() -> {
+            try {
+                result.set(queue.receive(5000));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        assertTrue(queue.send(7, 2).await(5000));
+        receiver.join();
+        assertEquals(Optional.of(7), result.get());
+    }
+
+    @Test
+    public void interrupted_receive_takes_no_message() throws Exception {
+        PriorityMessageQueue<Integer> queue = new PriorityMessageQueue<>(2);
+        AtomicReference<Object> result = new AtomicReference<>();
+        Thread receiver = new Thread(() -> {
+            try {
+                result.set(queue.receive(-1));
+            } catch (InterruptedException e) {
+                result.set(e);
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        receiver.interrupt();
+        receiver.join();
+        assertTrue(result.get() instanceof InterruptedException);
+
+        SendStatus high = queue.send(1, 0), low = queue.send(2, 1);
+        assertFalse(high.isSent() || low.isSent());
+        assertEquals(Optional.of(1), queue.receive(0));
+        assertEquals(Optional.of(2), queue.receive(0));
+    }
+
+    @Test
+    public void drainTo_takes_the_higher_priorities_first() throws InterruptedException {
+        PriorityMessageQueue<Integer> queue = new PriorityMessageQueue<>(2);
+        queue.send(3, 1);
+        queue.send(1, 0);
+        queue.send(4, 1);
+        queue.send(2, 0);
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(3, queue.drainTo(drained, 3, 0));
+        assertEquals(Arrays.asList(1, 2, 3), drained);
+        assertEquals(1, queue.drainTo(drained, 3, 0));
+        assertEquals(Arrays.asList(1, 2, 3, 4), drained);
+        assertEquals(0, queue.drainTo(drained, 3, 50));
+    }
+
+    @Test
+    public void drainTo_waits_while_every_priority_is_empty() throws Exception {
+        PriorityMessageQueue<Integer> queue = new PriorityMessageQueue<>(2);
+        List<Integer> drained = new ArrayList<>();
+        AtomicReference<Integer> count = new AtomicReference<>();
+        Thread receiver = new Thread(() -> {
+            try {
+                count.set(queue.drainTo(drained, 10, 5000));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        queue.send(1, 1);
+        receiver.join();
+        assertEquals(1, (int) count.get());
+        assertEquals(Arrays.asList(1), drained);
+    }
+
+    @Test
+    public void bounded_priority_is_full_on_its_own() throws InterruptedException {
+        PriorityMessageQueue<Integer> queue = new PriorityMessageQueue<>(2, 1);
+        assertTrue(queue.trySend(1, 0).isPresent());
+        assertFalse(queue.trySend(2, 0).isPresent());
+        assertTrue(queue.trySend(3, 1).isPresent());
+
+        assertEquals(Optional.of(1), queue.receive(0));
+        assertTrue(queue.trySend(2, 0).isPresent());
+    }
+}
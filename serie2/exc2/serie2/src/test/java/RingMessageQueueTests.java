@@ -0,0 +1,96 @@
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingMessageQueueTests {
+
+    @Test
+    public void capacity_is_rounded_up_to_a_power_of_two() {
+        assertEquals(2, new RingMessageQueue<Integer>(1).capacity());
+        assertEquals(8, new RingMessageQueue<Integer>(5).capacity());
+        assertEquals(8, new RingMessageQueue<Integer>(8).capacity());
+    }
+
+    @Test
+    public void trySend_fails_when_full_and_messages_come_out_in_order() {
+        RingMessageQueue<Integer> ring = new RingMessageQueue<>(4);
+        // a few laps around the ring
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++)
+                assertTrue(ring.trySend(lap * 4 + i));
+            assertFalse(ring.trySend(-1));
+            for (int i = 0; i < 4; i++)
+                assertEquals(lap * 4 + i, (int) ring.tryReceive());
+            assertNull(ring.tryReceive());
+        }
+    }
+
+    @Test
+    public void send_times_out_when_full_and_receive_when_empty() throws InterruptedException {
+        RingMessageQueue<Integer> ring = new RingMessageQueue<>(1);
+        assertFalse(ring.receive(50).isPresent());
+        assertTrue(ring.send(1, 0));
+        assertTrue(ring.send(2, 0));
+        assertFalse(ring.send(3, 50));
+        assertEquals(Optional.of(1), ring.receive(0));
+        assertEquals(Optional.of(2), ring.receive(0));
+    }
+
+    @Test
+    public void send_status_is_sent_once_the_message_is_received() throws Exception {
+        RingMessageQueue<Integer> ring = new RingMessageQueue<>(2);
+        SendStatus status = ring.send(1);
+        assertFalse(status.isSent());
+        assertFalse(status.tryCancel());
+        AtomicBoolean fired = new AtomicBoolean();
+        status.onSent().thenRun(() -> fired.set(true));
+        assertFalse(status.await(50));
+
+        Thread receiver = new Thread(() -> ring.tryReceive());
+        receiver.start();
+        assertTrue(status.await(5000));
+        receiver.join();
+        assertTrue(status.isSent());
+        assertTrue(fired.get());
+    }
+
+    @Test
+    public void blocked_receive_gets_a_later_send() throws Exception {
+        RingMessageQueue<Integer> ring = new RingMessageQueue<>(2);
+        Optional<?>[] result = new Optional<?>[1];
+        Thread receiver = new Thread(() -> {
+            try {
+                result[0] = ring.receive(5000);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        receiver.start();
+        Thread.sleep(100);
+        assertTrue(ring.trySend(7));
+        receiver.join();
+        assertEquals(Optional.of(7), result[0]);
+    }
+
+    @Test
+    public void send_status_stays_sent_when_its_slot_is_reused() throws InterruptedException {
+        RingMessageQueue<Integer> ring = new RingMessageQueue<>(2);
+        SendStatus first = ring.send(1);
+        assertEquals(1, (int) ring.tryReceive());
+        assertTrue(first.isSent());
+
+        // the next lap writes the same slot again
+        SendStatus second = ring.send(2), third = ring.send(3);
+        assertTrue(first.isSent());
+        assertFalse(second.isSent() || third.isSent());
+        assertEquals(2, (int) ring.tryReceive());
+        assertTrue(second.isSent());
+        assertFalse(third.isSent());
+    }
+}
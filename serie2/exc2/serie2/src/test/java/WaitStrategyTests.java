@@ -0,0 +1,125 @@
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WaitStrategyTests {
+
+    // a new strategy per queue: spinThenPark keeps state
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Supplier<WaitStrategy>[] STRATEGIES = new Supplier[] {
+        WaitStrategy::blocking,
+        WaitStrategy::busySpin,
+        () -> WaitStrategy.spinThenYield(100),
+        WaitStrategy::spinThenPark
+    };
+
+    private interface Wait {
+        void run() throws InterruptedException;
+    }
+
+    // runs wait in a new thread, interrupts it after 50 ms and returns what it threw
+    private static Throwable interrupted(Wait wait) throws InterruptedException {
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                wait.run();
+            } catch (Throwable t) {
+                thrown.set(t);
+            }
+        });
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join(2000);
+        assertFalse(waiter.isAlive());
+        return thrown.get();
+    }
+
+    @Test
+    public void receive_gets_a_later_send() throws Exception {
+        for (Supplier<WaitStrategy> strategy : STRATEGIES) {
+            MessageQueue<Integer> queue = new MessageQueue<>(strategy.get());
+            Thread sender = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                queue.send(1);
+            });
+            sender.start();
+            assertEquals(Optional.of(1), queue.receive(5000));
+            sender.join();
+        }
+    }
+
+    @Test
+    public void receive_times_out() throws InterruptedException {
+        for (Supplier<WaitStrategy> strategy : STRATEGIES) {
+            MessageQueue<Integer> queue = new MessageQueue<>(strategy.get());
+            long start = System.nanoTime();
+            assertFalse(queue.receive(50).isPresent());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+    }
+
+    @Test
+    public void receive_is_interrupted() throws InterruptedException {
+        for (Supplier<WaitStrategy> strategy : STRATEGIES) {
+            MessageQueue<Integer> queue = new MessageQueue<>(strategy.get());
+            assertTrue(interrupted(() -> queue.receive(-1)) instanceof InterruptedException);
+            // nothing was taken on the way out
+            queue.send(1);
+            assertEquals(Optional.of(1), queue.receive(0));
+        }
+    }
+
+    @Test
+    public void await_is_woken_by_the_receive() throws Exception {
+        for (Supplier<WaitStrategy> strategy : STRATEGIES) {
+            MessageQueue<Integer> queue = new MessageQueue<>(strategy.get());
+            SendStatus status = queue.send(1);
+            Thread receiver = new Thread(() -> {
+                try {
+                    Thread.sleep(50);
+                    queue.receive(0);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+            assertTrue(status.await(5000));
+            receiver.join();
+        }
+    }
+
+    @Test
+    public void await_times_out() throws InterruptedException {
+        for (Supplier<WaitStrategy> strategy : STRATEGIES) {
+            MessageQueue<Integer> queue = new MessageQueue<>(strategy.get());
+            SendStatus status = queue.send(1);
+            long start = System.nanoTime();
+            assertFalse(status.await(50));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+            assertFalse(status.isSent());
+        }
+    }
+
+    @Test
+    public void await_is_interrupted() throws InterruptedException {
+        for (Supplier<WaitStrategy> strategy : STRATEGIES) {
+            MessageQueue<Integer> queue = new MessageQueue<>(strategy.get());
+            SendStatus status = queue.send(1);
+            assertTrue(interrupted(() -> status.await(-1)) instanceof InterruptedException);
+            assertEquals(Optional.of(1), queue.receive(0));
+            assertTrue(status.isSent());
+        }
+    }
+}